@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import Imaris.tType;
+import ij.ImagePlus;
+
+import java.util.logging.Logger;
+
+/**
+ * Appends the channels of an ImagePlus to the current Imaris dataset, choosing how to modify the dataset depending on
+ * its size and on a memory budget.
+ * <p>
+ * Writing into the dataset that is displayed makes the Imaris GUI refresh after each write, which is very slow.
+ * Cloning it first avoids this, but needs twice the memory on the Imaris side, which fails for very large datasets.
+ * The available strategies are:
+ * <ul>
+ *     <li>{@link Strategy#CLONE_SWAP}: clone the dataset, append to the clone and replace the current dataset with it.
+ *     Fastest, but the dataset is held twice during the transfer</li>
+ *     <li>{@link Strategy#STAGED}: temporarily display a tiny placeholder dataset, append to the original dataset in
+ *     place, then display it again. No extra memory and no GUI refresh</li>
+ *     <li>{@link Strategy#IN_PLACE}: append to the displayed dataset directly. Only used for additions that
+ *     {@link DatasetTransfer} sends in a single call, a single channel and timepoint that fits in one block and one
+ *     request, so that the GUI refreshes once</li>
+ * </ul>
+ * The planner picks {@link Strategy#CLONE_SWAP} while the clone fits in the budget (see
+ * {@link #setMemoryBudget(long)}), then {@link Strategy#IN_PLACE} or {@link Strategy#STAGED}.
+ */
+public class ChannelAppender {
+
+    private static final Logger log = Logger.getLogger(ChannelAppender.class.getName());
+
+    /**
+     * How the current dataset is modified when appending channels
+     */
+    public enum Strategy {
+        CLONE_SWAP,
+        IN_PLACE,
+        STAGED
+    }
+
+    private static long memoryBudget = 4L * 1024 * 1024 * 1024;
+
+    /**
+     * Sets the maximum amount of memory, in bytes, that a clone of the current dataset may use on the Imaris side.
+     * Defaults to 4 GB
+     *
+     * @param bytes the budget in bytes
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Picks the strategy to append an image to a dataset, from their sizes and the memory budget
+     *
+     * @param dataset the dataset to append to
+     * @param imp     the image to append
+     * @return the strategy to use
+     * @throws Error an Imaris Error
+     */
+    public static Strategy plan(IDataSetPrx dataset, ImagePlus imp) throws Error {
+        int bytesPerPixel = EasyXT.Dataset.getBitDepth(dataset) / 8;
+        long volume = (long) dataset.GetSizeX() * dataset.GetSizeY() * dataset.GetSizeZ() * bytesPerPixel;
+        long datasetBytes = volume * dataset.GetSizeC() * dataset.GetSizeT();
+        long addedBytes = (long) imp.getWidth() * imp.getHeight() * imp.getNSlices() * imp.getNChannels() * imp.getNFrames() * bytesPerPixel;
+
+        // The clone is as large as the original and grows with the new channels
+        if (datasetBytes + addedBytes <= memoryBudget) return Strategy.CLONE_SWAP;
+        // A single write means a single refresh of the GUI
+        if (getWriteCalls(imp, bytesPerPixel * 8) == 1) return Strategy.IN_PLACE;
+        return Strategy.STAGED;
+    }
+
+    /**
+     * Counts the calls {@link DatasetTransfer#write} needs to send an image: one per block of slices, for each channel
+     * and timepoint, and more when a block is larger than a request
+     */
+    private static long getWriteCalls(ImagePlus imp, int bitDepth) {
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        int nSlices = imp.getNSlices();
+        long planeBytes = (long) width * height * (bitDepth / 8);
+        int blockZ = DatasetTransfer.getSlicesPerBlock(width, height, bitDepth, nSlices);
+        long calls = (long) imp.getNChannels() * imp.getNFrames() * ((nSlices + blockZ - 1) / blockZ);
+        long blockBytes = planeBytes * blockZ;
+        long maxRequestBytes = DatasetTransfer.getMaxRequestBytes();
+        long requestsPerBlock = blockBytes <= maxRequestBytes ? 1 : (blockBytes - 1) / maxRequestBytes + 1;
+        return calls * requestsPerBlock;
+    }
+
+    /**
+     * Appends an image to the current dataset as new channels, with the strategy chosen by {@link #plan}
+     *
+     * @param imp the image to append
+     * @throws Error an Imaris Error
+     */
+    public static void append(ImagePlus imp) throws Error {
+        append(imp, plan(EasyXT.Dataset.getCurrent(), imp));
+    }
+
+    /**
+     * Appends an image to the current dataset as new channels, with the given strategy
+     *
+     * @param imp      the image to append
+     * @param strategy how to modify the current dataset
+     * @throws Error an Imaris Error
+     */
+    public static void append(ImagePlus imp, Strategy strategy) throws Error {
+        IDataSetPrx dataset = EasyXT.Dataset.getCurrent();
+        log.info("Appending " + imp.getNChannels() + " channel(s) to the current dataset: " + strategy);
+
+        switch (strategy) {
+            case CLONE_SWAP:
+                IDataSetPrx newDataset = dataset.Clone();
+                EasyXT.Dataset.addChannels(imp, newDataset, 0, 0, 0, 0);
+                EasyXT.Dataset.setCurrent(newDataset);
+
+                // Clear some memory
+                dataset.Dispose();
+                break;
+
+            case STAGED:
+                IDataSetPrx placeholder = createPlaceholder(dataset);
+                EasyXT.Dataset.setCurrent(placeholder);
+                try {
+                    EasyXT.Dataset.addChannels(imp, dataset, 0, 0, 0, 0);
+                } finally {
+                    // Always give the original dataset back, even if the transfer failed
+                    EasyXT.Dataset.setCurrent(dataset);
+                    placeholder.Dispose();
+                }
+                break;
+
+            default:
+                EasyXT.Dataset.addChannels(imp, dataset, 0, 0, 0, 0);
+                break;
+        }
+    }
+
+    /**
+     * Creates a single voxel dataset with the same extents as the given one, so that the view does not move while it
+     * is displayed
+     */
+    private static IDataSetPrx createPlaceholder(IDataSetPrx dataset) throws Error {
+        IDataSetPrx placeholder = EasyXT.Utils.getImarisApp().GetFactory().CreateDataSet();
+        placeholder.Create(tType.eTypeUInt8, 1, 1, 1, 1, 1);
+        placeholder.SetExtendMinX(dataset.GetExtendMinX());
+        placeholder.SetExtendMinY(dataset.GetExtendMinY());
+        placeholder.SetExtendMinZ(dataset.GetExtendMinZ());
+        placeholder.SetExtendMaxX(dataset.GetExtendMaxX());
+        placeholder.SetExtendMaxY(dataset.GetExtendMaxY());
+        placeholder.SetExtendMaxZ(dataset.GetExtendMaxZ());
+        return placeholder;
+    }
+}
@@ -0,0 +1,674 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.HyperStackConverter;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * This class is based on a Builder model to obtain only a sub-part of an Imaris dataset as an ImagePlus.
+ * It allows for selecting a bounding box in XYZ, a list of channels and a range of timepoints, so that only
+ * the requested data is transferred from Imaris. The returned ImagePlus is calibrated so that it stays at the
+ * same physical location as in the original dataset.
+ * All indices are 0-based, like in the Imaris API. By default, the whole dataset is returned.
+ * <p>
+ * For previews, {@link #setDownsampling(int, int)} or {@link #selectResolutionLevel(int)} shrink the returned image,
+ * and the heap cost with it. The Imaris XT API does not give access to the resolution pyramid stored in the file,
+ * and can only crop a whole copy of the dataset. When the selection covers most of the dataset, it is resampled in
+ * Imaris on such a temporary copy, which is disposed of afterwards. Smaller selections are read one kept slice at a
+ * time and shrunk in Fiji, so that Imaris never holds a copy of the whole dataset.
+ * <pre>
+ * ImagePlus imp = EasyXT.Dataset.query( dataset )
+ *                     .selectChannel( 1 )
+ *                     .selectTimepoints( 0, 4 )
+ *                     .get();
+ * </pre>
+ */
+public class DatasetQuery {
+
+    private static final Logger log = Logger.getLogger(DatasetQuery.class.getName());
+
+    // Fraction of the dataset the selection has to cover to be worth copying and resampling in Imaris
+    private static final double MIN_CLONE_FRACTION = 0.5;
+
+    private final IDataSetPrx dataset;
+    private final ImarisCalibration cal;
+
+    private int x = 0, y = 0, z = 0;
+    private int w, h, d;
+    private int[] channels;
+    private int[] timepoints;
+
+    private int downsampleXY = 1;
+    private int downsampleZ = 1;
+
+    // null lets MemoryPlanner decide from the size of the selection
+    private MemoryPlanner.Strategy memoryStrategy = null;
+
+    private boolean useCache = false;
+
+    private boolean computeStatistics = false;
+    // Statistics of the transfer in progress, if requested
+    private TransferStatistics statistics = null;
+
+    /**
+     * Constructor for getting a sub-part of a dataset
+     *
+     * @param dataset the dataset from which to extract the data
+     * @throws Error an Imaris Error Object
+     */
+    public DatasetQuery(IDataSetPrx dataset) throws Error {
+        this(dataset, new ImarisCalibration(dataset));
+    }
+
+    /**
+     * Constructor reusing a calibration already read from the dataset, to avoid asking Imaris again when many queries
+     * are made on the same dataset. The calibration is not modified
+     *
+     * @param dataset the dataset from which to extract the data
+     * @param cal     the calibration of the whole dataset
+     */
+    DatasetQuery(IDataSetPrx dataset, ImarisCalibration cal) {
+        this.dataset = dataset;
+        this.cal = cal;
+
+        // Default to the whole dataset
+        this.w = cal.xSize;
+        this.h = cal.ySize;
+        this.d = cal.zSize;
+        this.channels = DatasetTransfer.range(cal.cSize);
+        this.timepoints = DatasetTransfer.range(cal.tSize);
+    }
+
+    /**
+     * @return a new query with the same dataset and settings, which can be changed without affecting this one
+     */
+    DatasetQuery copy() {
+        DatasetQuery copy = new DatasetQuery(dataset, cal);
+        copy.x = x;
+        copy.y = y;
+        copy.z = z;
+        copy.w = w;
+        copy.h = h;
+        copy.d = d;
+        copy.channels = channels.clone();
+        copy.timepoints = timepoints.clone();
+        copy.downsampleXY = downsampleXY;
+        copy.downsampleZ = downsampleZ;
+        copy.memoryStrategy = memoryStrategy;
+        copy.useCache = useCache;
+        copy.computeStatistics = computeStatistics;
+        return copy;
+    }
+
+    /**
+     * Selects a bounding box in XY, in pixels. All slices are kept unless {@link #selectSlices(int, int)} is used
+     *
+     * @param x      the first column, 0-based
+     * @param y      the first row, 0-based
+     * @param width  the width of the bounding box
+     * @param height the height of the bounding box
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectRegion(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.w = width;
+        this.h = height;
+        return this;
+    }
+
+    /**
+     * Selects a bounding box in XYZ, in pixels
+     *
+     * @param x      the first column, 0-based
+     * @param y      the first row, 0-based
+     * @param z      the first slice, 0-based
+     * @param width  the width of the bounding box
+     * @param height the height of the bounding box
+     * @param depth  the number of slices of the bounding box
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectRegion(int x, int y, int z, int width, int height, int depth) {
+        selectRegion(x, y, width, height);
+        this.z = z;
+        this.d = depth;
+        return this;
+    }
+
+    /**
+     * Selects a range of slices
+     *
+     * @param zStart the first slice, 0-based
+     * @param zEnd   the last slice, 0-based and inclusive
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectSlices(int zStart, int zEnd) {
+        this.z = zStart;
+        this.d = zEnd - zStart + 1;
+        return this;
+    }
+
+    /**
+     * Selects a single channel
+     *
+     * @param channel the channel to extract, 0-based
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectChannel(int channel) {
+        this.channels = new int[]{channel};
+        return this;
+    }
+
+    /**
+     * Selects the channels to extract, in the order they should appear in the ImagePlus
+     *
+     * @param channels the channels to extract, 0-based
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectChannels(List<Integer> channels) {
+        this.channels = channels.stream().mapToInt(Integer::intValue).toArray();
+        return this;
+    }
+
+    /**
+     * Selects a single timepoint
+     *
+     * @param timepoint the timepoint to extract, 0-based
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectTimepoint(int timepoint) {
+        this.timepoints = new int[]{timepoint};
+        return this;
+    }
+
+    /**
+     * Selects a range of timepoints
+     *
+     * @param tStart the first timepoint, 0-based
+     * @param tEnd   the last timepoint, 0-based and inclusive
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectTimepoints(int tStart, int tEnd) {
+        this.timepoints = IntStream.rangeClosed(tStart, tEnd).toArray();
+        return this;
+    }
+
+    /**
+     * Reduces the size of the returned image by the given integer factors, see the class documentation for how the
+     * data is resampled
+     *
+     * @param factorXY the downsampling factor in X and Y, 1 for full resolution
+     * @param factorZ  the downsampling factor in Z, 1 for full resolution
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery setDownsampling(int factorXY, int factorZ) {
+        this.downsampleXY = Math.max(1, factorXY);
+        this.downsampleZ = Math.max(1, factorZ);
+        return this;
+    }
+
+    /**
+     * Selects a resolution level, similar to the pyramid levels of Imaris files. Level 0 is the full resolution,
+     * and each level halves the size in X, Y and Z
+     *
+     * @param level the resolution level, 0 for full resolution
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery selectResolutionLevel(int level) {
+        int factor = 1 << Math.max(0, level);
+        return setDownsampling(factor, factor);
+    }
+
+    /**
+     * Forces where the transferred data is stored. By default, {@link MemoryPlanner} reads the data in memory if it
+     * fits in the heap, and falls back to a memory-mapped file or to a virtual stack otherwise
+     *
+     * @param strategy the strategy to use, or null to decide from the size of the selection
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery setMemoryStrategy(MemoryPlanner.Strategy strategy) {
+        this.memoryStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * Returns the calibration of the selected sub-part of the dataset
+     *
+     * @return the calibration, with extents and origins shifted to match the selection, and pixel sizes
+     * adjusted to the downsampling
+     */
+    public ImarisCalibration getCalibration() {
+        ImarisCalibration subCal = cal.getSubset(x, y, z, w, h, d, channels, timepoints.length);
+        if (isDownsampled()) {
+            subCal = subCal.getResampled(downsampledSize(w, downsampleXY), downsampledSize(h, downsampleXY), downsampledSize(d, downsampleZ));
+        }
+        return subCal;
+    }
+
+    /**
+     * Reads the selection through the {@link PlaneCache}, if it is enabled. Only use it for data that is not modified
+     * in Imaris, as the cache only notices changes made through EasyXT or saved to the file
+     *
+     * @param useCache true to use the cache for this read
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery setUseCache(boolean useCache) {
+        this.useCache = useCache;
+        return this;
+    }
+
+    /**
+     * Computes histograms and intensity statistics of each channel and timepoint while the data is transferred, and
+     * sets the display ranges of the image from the actual data rather than from Imaris. See
+     * {@link TransferStatistics#of(ImagePlus)} to get the statistics from the image
+     *
+     * @param compute true to compute statistics
+     * @return the same DatasetQuery object to continue configuration
+     */
+    public DatasetQuery setComputeStatistics(boolean compute) {
+        this.computeStatistics = compute;
+        return this;
+    }
+
+    /**
+     * Computes the histograms and intensity statistics of each selected channel and timepoint, at full resolution,
+     * streaming the data from Imaris without keeping it
+     *
+     * @return the statistics of the selection
+     * @throws Error an Imaris Error, also if the selection is outside of the dataset
+     */
+    public TransferStatistics getStatistics() throws Error {
+        checkSelection();
+        int bitDepth = EasyXT.Dataset.getBitDepth(dataset);
+        TransferStatistics result = new TransferStatistics(bitDepth, cal);
+        DatasetTransfer.read(dataset, bitDepth, x, y, z, w, h, d, channels, timepoints,
+                (c, zi, t, pixels) -> result.add(channels[c], timepoints[t], pixels));
+        return result;
+    }
+
+    int[] getSelectedChannels() {
+        return channels.clone();
+    }
+
+    int[] getSelectedTimepoints() {
+        return timepoints.clone();
+    }
+
+    /**
+     * @return the first column, row and slice of the selection
+     */
+    int[] getOrigin() {
+        return new int[]{x, y, z};
+    }
+
+    IDataSetPrx getDataset() {
+        return dataset;
+    }
+
+    /**
+     * Transfers the selected data from Imaris
+     *
+     * @return a calibrated ImagePlus with the selected data
+     * @throws Error an Imaris Error, also if the selection is outside of the dataset
+     */
+    public ImagePlus get() throws Error {
+        checkSelection();
+        statistics = computeStatistics ? new TransferStatistics(EasyXT.Dataset.getBitDepth(dataset), cal) : null;
+
+        if (isDownsampled()) return getDownsampled();
+
+        ImarisCalibration subCal = getCalibration();
+        int bitDepth = EasyXT.Dataset.getBitDepth(dataset);
+
+        int nc = channels.length;
+        int nz = d;
+        int nt = timepoints.length;
+
+        long bytes = (long) w * h * nc * nz * nt * (bitDepth / 8);
+        MemoryPlanner.Strategy strategy = memoryStrategy != null ? memoryStrategy : MemoryPlanner.plan(bytes);
+        switch (strategy) {
+            case VIRTUAL:
+                if (statistics != null) log.warning("Statistics are not computed for virtual stacks");
+                return getVirtual();
+            case MAPPED:
+                return getMapped(subCal, bitDepth);
+            case SUBSET:
+                throw new Error("Not Enough Memory", "The selection needs " + (bytes >> 20) + " MB, but only "
+                        + (MemoryPlanner.getAvailableHeap() >> 20) + " MB are free",
+                        "Select fewer channels or timepoints, a smaller region or a downsampling with EasyXT.Dataset.query()");
+            default:
+                break;
+        }
+
+        // Get whole Z slabs per call, several at a time, see DatasetTransfer
+        // ImageJ stacks are ordered XYCZT
+        Object[] planes = new Object[nc * nz * nt];
+        PlaneCache.Store store = useCache && PlaneCache.isEnabled() ? PlaneCache.open(dataset, bitDepth) : null;
+        if (store != null) {
+            readCached(store, bitDepth, planes);
+        } else {
+            DatasetTransfer.read(dataset, bitDepth, x, y, z, w, h, nz, channels, timepoints,
+                    (c, zi, t, pixels) -> {
+                        addStatistics(c, t, pixels);
+                        planes[c + zi * nc + t * nc * nz] = pixels;
+                    });
+        }
+
+        // Empty stack, the pixel arrays come directly from Imaris
+        ImageStack stack = new ImageStack(w, h, nc * nz * nt);
+        for (int i = 0; i < planes.length; i++) {
+            stack.setPixels(planes[i], i + 1);
+        }
+
+        return withStatistics(makeImagePlus(EasyXT.Utils.getImarisApp().GetCurrentFileName(), stack, subCal));
+    }
+
+    /**
+     * Returns the selection as a virtual hyperstack, whose planes are only read from Imaris when displayed.
+     * See {@link ImarisVirtualStack}. Downsampling is not available for virtual stacks and is ignored
+     *
+     * @return a calibrated ImagePlus backed by an {@link ImarisVirtualStack}
+     * @throws Error an Imaris Error, also if the selection is outside of the dataset
+     */
+    public ImagePlus getVirtual() throws Error {
+        checkSelection();
+
+        if (isDownsampled()) {
+            log.warning("Downsampling is not supported for virtual stacks, returning full resolution data");
+        }
+
+        ImarisCalibration subCal = cal.getSubset(x, y, z, w, h, d, channels, timepoints.length);
+        ImarisVirtualStack stack = new ImarisVirtualStack(dataset, x, y, z, w, h, d, channels, timepoints);
+
+        return makeImagePlus(EasyXT.Utils.getImarisApp().GetCurrentFileName(), stack, subCal);
+    }
+
+    /**
+     * Fills the planes of the selection, in XYCZT order, from the {@link PlaneCache} where possible
+     */
+    private void readCached(PlaneCache.Store store, int bitDepth, Object[] planes) throws Error {
+        int nc = channels.length;
+        int nz = d;
+        for (int ci = 0; ci < nc; ci++) {
+            for (int ti = 0; ti < timepoints.length; ti++) {
+                final int c = ci, t = ti;
+                DatasetTransfer.PlaneConsumer consumer = (cj, zi, tj, pixels) -> {
+                    addStatistics(c, t, pixels);
+                    planes[c + zi * nc + t * nc * nz] = pixels;
+                };
+                if (!store.read(dataset, channels[c], timepoints[t], x, y, z, w, h, nz, consumer)) {
+                    DatasetTransfer.read(dataset, bitDepth, x, y, z, w, h, nz, new int[]{channels[c]}, new int[]{timepoints[t]}, consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transfers the selection into a memory-mapped temporary file, see {@link MappedImageStack}.
+     * Falls back to a virtual stack if the file cannot be created
+     */
+    private ImagePlus getMapped(ImarisCalibration subCal, int bitDepth) throws Error {
+        int nc = channels.length;
+        int nz = d;
+        int nt = timepoints.length;
+
+        MappedImageStack stack;
+        try {
+            stack = new MappedImageStack(w, h, nc * nz * nt, bitDepth);
+        } catch (IOException e) {
+            log.warning("Could not create a temporary file, returning a virtual stack instead: " + e.getMessage());
+            return getVirtual();
+        }
+
+        // ImageJ stacks are ordered XYCZT
+        DatasetTransfer.read(dataset, bitDepth, x, y, z, w, h, nz, channels, timepoints,
+                (c, zi, t, pixels) -> {
+                    addStatistics(c, t, pixels);
+                    stack.setPixels(pixels, c + zi * nc + t * nc * nz + 1);
+                });
+
+        return withStatistics(makeImagePlus(EasyXT.Utils.getImarisApp().GetCurrentFileName(), stack, subCal));
+    }
+
+    /**
+     * Resamples the selection in Imaris when it covers most of the dataset, reads and shrinks it slice by slice otherwise
+     */
+    private ImagePlus getDownsampled() throws Error {
+        int dw = downsampledSize(w, downsampleXY);
+        int dh = downsampledSize(h, downsampleXY);
+        int dd = downsampledSize(d, downsampleZ);
+
+        // Channels and timepoints are cropped to their enclosing range
+        long nc = IntStream.of(channels).max().getAsInt() - IntStream.of(channels).min().getAsInt() + 1;
+        long nt = IntStream.of(timepoints).max().getAsInt() - IntStream.of(timepoints).min().getAsInt() + 1;
+        double fraction = (double) w * h * d * nc * nt / ((double) dataset.GetSizeX() * dataset.GetSizeY()
+                * dataset.GetSizeZ() * dataset.GetSizeC() * dataset.GetSizeT());
+
+        if (fraction >= MIN_CLONE_FRACTION) return getResampled(dw, dh, dd);
+        return getShrunk(dw, dh, dd);
+    }
+
+    /**
+     * Crops a copy of the dataset to the selection in Imaris, resamples it there and transfers the result.
+     * Non-contiguous channels and timepoints are cropped to their enclosing range, and picked when transferring
+     */
+    private ImagePlus getResampled(int dw, int dh, int dd) throws Error {
+        int cMin = IntStream.of(channels).min().getAsInt();
+        int cMax = IntStream.of(channels).max().getAsInt();
+        int tMin = IntStream.of(timepoints).min().getAsInt();
+        int tMax = IntStream.of(timepoints).max().getAsInt();
+
+        log.info("Resampling selection in Imaris from (" + w + ", " + h + ", " + d + ") to (" + dw + ", " + dh + ", " + dd + ")");
+
+        IDataSetPrx resampled = dataset.Clone();
+        try {
+            resampled.Crop(x, w, y, h, z, d, cMin, cMax - cMin + 1, tMin, tMax - tMin + 1);
+            resampled.Resample(dw, dh, dd, cMax - cMin + 1, tMax - tMin + 1);
+
+            // Channels and timepoints are now relative to the cropped dataset
+            int[] cropChannels = IntStream.of(channels).map(c -> c - cMin).toArray();
+            int[] cropTimepoints = IntStream.of(timepoints).map(t -> t - tMin).toArray();
+
+            ImarisCalibration subCal = getCalibration();
+            int bitDepth = EasyXT.Dataset.getBitDepth(resampled);
+
+            int nc = cropChannels.length;
+            int nt = cropTimepoints.length;
+
+            Object[] planes = new Object[nc * dd * nt];
+            DatasetTransfer.read(resampled, bitDepth, 0, 0, 0, dw, dh, dd, cropChannels, cropTimepoints,
+                    (c, zi, t, pixels) -> {
+                        addStatistics(c, t, pixels);
+                        planes[c + zi * nc + t * nc * dd] = pixels;
+                    });
+
+            ImageStack stack = new ImageStack(dw, dh, planes.length);
+            for (int i = 0; i < planes.length; i++) {
+                stack.setPixels(planes[i], i + 1);
+            }
+            return withStatistics(makeImagePlus(EasyXT.Utils.getImarisApp().GetCurrentFileName(), stack, subCal));
+
+        } finally {
+            // Free the memory in Imaris
+            resampled.Dispose();
+        }
+    }
+
+    /**
+     * Reads only the slices kept by the downsampling, at full resolution, and shrinks each plane in Fiji as it arrives,
+     * averaging in XY. Nothing is copied in Imaris, and only one full resolution plane per transfer thread is held
+     */
+    private ImagePlus getShrunk(int dw, int dh, int dd) throws Error {
+        log.info("Shrinking selection from (" + w + ", " + h + ", " + d + ") to (" + dw + ", " + dh + ", " + dd + ")");
+
+        int bitDepth = EasyXT.Dataset.getBitDepth(dataset);
+        int nc = channels.length;
+        int nt = timepoints.length;
+
+        Object[] planes = new Object[nc * dd * nt];
+        List<DatasetTransfer.Task> tasks = new ArrayList<>();
+        for (int k = 0; k < dd; k++) {
+            // The slice at the center of each group of downsampled slices
+            final int zi = k;
+            final int zSource = z + (int) ((k + 0.5) * d / dd);
+            tasks.add(() -> DatasetTransfer.read(dataset, bitDepth, x, y, zSource, w, h, 1, channels, timepoints,
+                    (c, unused, t, pixels) -> {
+                        Object shrunk = shrink(pixels, dw, dh);
+                        addStatistics(c, t, shrunk);
+                        planes[c + zi * nc + t * nc * dd] = shrunk;
+                    }));
+        }
+        DatasetTransfer.runAll(tasks);
+
+        ImageStack stack = new ImageStack(dw, dh, planes.length);
+        for (int i = 0; i < planes.length; i++) {
+            stack.setPixels(planes[i], i + 1);
+        }
+        return withStatistics(makeImagePlus(EasyXT.Utils.getImarisApp().GetCurrentFileName(), stack, getCalibration()));
+    }
+
+    /**
+     * Resizes a plane of the selection to the downsampled size, averaging the pixels
+     */
+    private Object shrink(Object pixels, int dw, int dh) {
+        if (dw == w && dh == h) return pixels;
+        ImageProcessor ip;
+        if (pixels instanceof byte[]) ip = new ByteProcessor(w, h, (byte[]) pixels);
+        else if (pixels instanceof short[]) ip = new ShortProcessor(w, h, (short[]) pixels, null);
+        else ip = new FloatProcessor(w, h, (float[]) pixels);
+        ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+        return ip.resize(dw, dh, true).getPixels();
+    }
+
+    boolean isDownsampled() {
+        return downsampleXY > 1 || downsampleZ > 1;
+    }
+
+    private static int downsampledSize(int size, int factor) {
+        return Math.max(1, (int) Math.round((double) size / factor));
+    }
+
+    /**
+     * Adds a transferred plane to the statistics, if requested
+     *
+     * @param c the index of the channel in the selection
+     * @param t the index of the timepoint in the selection
+     */
+    private void addStatistics(int c, int t, Object pixels) {
+        if (statistics != null) statistics.add(channels[c], timepoints[t], pixels);
+    }
+
+    /**
+     * Attaches the statistics of the transfer to the image and sets its display ranges from them, if requested
+     */
+    private ImagePlus withStatistics(ImagePlus imp) {
+        if (statistics != null) {
+            imp.setProperty(TransferStatistics.PROPERTY, statistics);
+            statistics.applyDisplayRanges(imp, channels);
+            statistics = null;
+        }
+        return imp;
+    }
+
+    /**
+     * Builds the final ImagePlus from a complete stack, setting calibration, LUTs and display ranges
+     *
+     * @param title the title of the image
+     * @param stack a stack ordered in XYCZT with the sizes of the calibration
+     * @param cal   the calibration of the stack
+     * @return a (hyperstack) ImagePlus
+     */
+    static ImagePlus makeImagePlus(String title, ImageStack stack, ImarisCalibration cal) {
+        int nc = cal.cSize;
+        int nz = cal.zSize;
+        int nt = cal.tSize;
+
+        ImagePlus imp = new ImagePlus(title, stack);
+        imp.setDimensions(nc, nz, nt);
+        imp.setCalibration(cal);
+
+        if (nc * nz * nt > 1) imp = HyperStackConverter.toHyperStack(imp, nc, nz, nt);
+
+        // Set LookUpTables
+        if (imp instanceof CompositeImage) {
+
+            LUT[] luts = new LUT[nc];
+
+            for (int c = 0; c < nc; c++) {
+                Color color = EasyXT.Utils.getColorFromInt(cal.cColorsRGBA[c]);
+                luts[c] = LUT.createLutFromColor(color);
+            }
+
+            ((CompositeImage) imp).setLuts(luts);
+
+        } else if (nc == 1) {
+            imp.setLut(LUT.createLutFromColor(EasyXT.Utils.getColorFromInt(cal.cColorsRGBA[0])));
+        }
+
+        // Transfer min and max display values.
+        for (int c = 0; c < nc; c++) {
+            imp.setC(c + 1);
+            imp.setDisplayRange(cal.cMin[c], cal.cMax[c]);
+        }
+
+        return imp;
+    }
+
+    private void checkSelection() throws Error {
+        String detail = "Dataset\t(X,\tY,\tZ,\tC,\tT):\t (" + cal.xSize + ",\t" + cal.ySize + ",\t" + cal.zSize + ",\t" + cal.cSize + ",\t" + cal.tSize + ")";
+
+        if (x < 0 || y < 0 || z < 0 || w < 1 || h < 1 || d < 1 ||
+                x + w > cal.xSize || y + h > cal.ySize || z + d > cal.zSize) {
+            detail += "\nRegion\t(X,\tY,\tZ):\t (" + x + "-" + (x + w - 1) + ",\t" + y + "-" + (y + h - 1) + ",\t" + z + "-" + (z + d - 1) + ")";
+            log.severe("Selected region is outside of the dataset\n" + detail);
+            throw new Error("Selection Error", "Selected region is outside of the dataset", detail);
+        }
+
+        if (channels.length == 0 || IntStream.of(channels).anyMatch(c -> c < 0 || c >= cal.cSize)) {
+            log.severe("Selected channels are outside of the dataset\n" + detail);
+            throw new Error("Selection Error", "Selected channels are outside of the dataset", detail);
+        }
+
+        if (timepoints.length == 0 || IntStream.of(timepoints).anyMatch(t -> t < 0 || t >= cal.tSize)) {
+            log.severe("Selected timepoints are outside of the dataset\n" + detail);
+            throw new Error("Selection Error", "Selected timepoints are outside of the dataset", detail);
+        }
+    }
+}
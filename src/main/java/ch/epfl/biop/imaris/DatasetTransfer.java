@@ -0,0 +1,766 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import Imaris.ILabelImagePrx;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Helper class that moves pixel data between Imaris datasets and ImageJ pixel arrays.
+ * Instead of issuing one ICE call per (c, z, t) plane, consecutive slices are grouped into Z slabs,
+ * or whole volumes when they fit, which are then split back into one array per plane on the Fiji side.
+ * On datasets with many slices the per-call latency of ICE dominates, so fewer, larger calls are much faster.
+ * <p>
+ * The number of slices moved per call is either set explicitly with {@link #setBlockSizeZ(int)}
+ * or derived from {@link #setMaxBlockBytes(long)}, which should stay below the ICE MessageSizeMax
+ * used by the connection to Imaris.
+ * <p>
+ * {@link #read(IDataSetPrx, int, int, int, int, int, int, int, int[], int[], PlaneConsumer)} and
+ * {@link #write(IDataSetPrx, int, int, int, int, int, int, int, int[], int[], PlaneSupplier)} additionally keep
+ * several blocks in flight on a bounded pool of worker threads (see {@link #setThreads(int)}), so that we do not
+ * wait on one call at a time.
+ */
+public class DatasetTransfer {
+
+    private static final Logger log = Logger.getLogger(DatasetTransfer.class.getName());
+
+    // Number of slices to move per call. 0 means it is derived from maxBlockBytes
+    private static int blockSizeZ = 0;
+
+    // Largest sub-volume, in bytes, requested in a single ICE call
+    private static long maxBlockBytes = 32L * 1024L * 1024L;
+
+    // Largest request accepted by the connection, larger ones are split. Unlimited unless configured
+    private static long maxRequestBytes = Long.MAX_VALUE;
+
+    // Number of blocks kept in flight by read() and write()
+    private static int nThreads = 4;
+
+    // Shared worker pool, created on first use
+    private static ExecutorService pool;
+
+    // Flags the worker threads, so that nested transfers run inline instead of waiting on the pool
+    private static final ThreadLocal<Boolean> isWorker = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Receives the planes read by {@link #read(IDataSetPrx, int, int, int, int, int, int, int, int[], int[], PlaneConsumer)}.
+     * It is called from the worker threads, so implementations should only write to independent locations
+     */
+    @FunctionalInterface
+    public interface PlaneConsumer {
+        /**
+         * @param c      the index of the channel in the requested channels array
+         * @param z      the slice index, relative to the first requested slice
+         * @param t      the index of the timepoint in the requested timepoints array
+         * @param pixels the byte[], short[] or float[] pixels of the plane
+         */
+        void accept(int c, int z, int t, Object pixels);
+    }
+
+    /**
+     * Provides the planes written by {@link #write(IDataSetPrx, int, int, int, int, int, int, int, int[], int[], PlaneSupplier)}.
+     * It is called from the worker threads
+     */
+    @FunctionalInterface
+    public interface PlaneSupplier {
+        /**
+         * @param c the index of the channel in the requested channels array
+         * @param z the slice index, relative to the first requested slice
+         * @param t the index of the timepoint in the requested timepoints array
+         * @return the byte[], short[] or float[] pixels of the plane, matching the bit depth of the dataset
+         */
+        Object get(int c, int z, int t);
+    }
+
+    /**
+     * A unit of work that talks to Imaris
+     */
+    @FunctionalInterface
+    interface Task {
+        void run() throws Error;
+    }
+
+    /**
+     * Sets the number of Z slices moved in a single call to Imaris
+     *
+     * @param nSlices the number of slices per call, or 0 to derive it from {@link #getMaxBlockBytes()}
+     */
+    public static void setBlockSizeZ(int nSlices) {
+        blockSizeZ = Math.max(0, nSlices);
+    }
+
+    /**
+     * @return the number of Z slices moved per call, 0 if it is derived automatically
+     */
+    public static int getBlockSizeZ() {
+        return blockSizeZ;
+    }
+
+    /**
+     * Sets the largest size of a single sub-volume request, used when the block size is automatic.
+     * This should be kept below the ICE MessageSizeMax of the connection to Imaris
+     *
+     * @param bytes the maximum number of bytes moved in a single call
+     */
+    public static void setMaxBlockBytes(long bytes) {
+        if (bytes <= 0) {
+            log.warning("Maximum block size must be positive, keeping " + maxBlockBytes + " bytes");
+            return;
+        }
+        maxBlockBytes = bytes;
+    }
+
+    /**
+     * @return the largest size in bytes of a single sub-volume request
+     */
+    public static long getMaxBlockBytes() {
+        return maxBlockBytes;
+    }
+
+    /**
+     * Sets the largest request that the connection to Imaris accepts, usually derived from the ICE MessageSizeMax
+     * (see {@link TransportSettings}). Sub-volumes above this size are split into Z slabs or XY tiles automatically,
+     * by every transfer path. Unlimited by default, as the ImarisLib connection accepts whole planes
+     *
+     * @param bytes the maximum number of bytes in a single request, or {@link Long#MAX_VALUE} for no limit
+     */
+    public static void setMaxRequestBytes(long bytes) {
+        if (bytes <= 0) {
+            log.warning("Maximum request size must be positive, keeping " + maxRequestBytes + " bytes");
+            return;
+        }
+        maxRequestBytes = bytes;
+    }
+
+    /**
+     * @return the largest size in bytes of a single request to Imaris
+     */
+    public static long getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    /**
+     * Sets the number of blocks that are transferred concurrently
+     *
+     * @param threads the number of worker threads, 1 to transfer one block at a time
+     */
+    public static synchronized void setThreads(int threads) {
+        nThreads = Math.max(1, threads);
+        // The pool will be recreated with the new size on next use
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * @return the number of blocks that are transferred concurrently
+     */
+    public static int getThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Computes how many slices of a given plane size should be moved per call
+     *
+     * @param width    the width of the planes, in pixels
+     * @param height   the height of the planes, in pixels
+     * @param bitDepth the bit depth of the data, 8, 16 or 32
+     * @param nSlices  the total number of slices to move
+     * @return the number of slices to move per call, between 1 and nSlices
+     */
+    public static int getSlicesPerBlock(int width, int height, int bitDepth, int nSlices) {
+        if (nSlices < 1) return 1;
+        if (blockSizeZ > 0) return Math.min(blockSizeZ, nSlices);
+
+        long planeBytes = Math.max(1L, (long) width * height * (bitDepth / 8));
+        long slices = Math.max(1L, Math.min(maxBlockBytes, maxRequestBytes) / planeBytes);
+        return (int) Math.min(slices, nSlices);
+    }
+
+    /**
+     * Reads a sub-volume from the dataset as a single 1D array, in a single call
+     *
+     * @param dataset  the dataset to read from
+     * @param bitDepth the bit depth of the dataset, 8, 16 or 32
+     * @param x        start X position, in pixels
+     * @param y        start Y position, in pixels
+     * @param z        start Z position, in pixels
+     * @param c        the channel to read
+     * @param t        the timepoint to read
+     * @param w        the width of the sub-volume
+     * @param h        the height of the sub-volume
+     * @param d        the number of slices of the sub-volume
+     * @return a byte[], short[] or float[] array with the XYZ-ordered sub-volume
+     * @throws Error an Imaris Error
+     */
+    public static Object readBlock(IDataSetPrx dataset, int bitDepth, int x, int y, int z, int c, int t, int w, int h, int d) throws Error {
+        if ((long) w * h * d * (bitDepth / 8) > maxRequestBytes) {
+            return readTiled(dataset, bitDepth, x, y, z, c, t, w, h, d);
+        }
+        long start = System.nanoTime();
+        Object block;
+        switch (bitDepth) {
+            case 8:
+                block = dataset.GetDataSubVolumeAs1DArrayBytes(x, y, z, c, t, w, h, d);
+                break;
+            case 16:
+                block = dataset.GetDataSubVolumeAs1DArrayShorts(x, y, z, c, t, w, h, d);
+                break;
+            case 32:
+                block = dataset.GetDataSubVolumeAs1DArrayFloats(x, y, z, c, t, w, h, d);
+                break;
+            default:
+                throw new Error("Unsupported Pixel Type", "Unsupported bit depth: " + bitDepth, "");
+        }
+        TransferMonitor.get().record((long) w * h * d * (bitDepth / 8), System.nanoTime() - start);
+        return block;
+    }
+
+    /**
+     * Writes a sub-volume into the dataset from a single 1D array, in a single call
+     *
+     * @param dataset  the dataset to write to
+     * @param bitDepth the bit depth of the dataset, 8, 16 or 32
+     * @param block    a byte[], short[] or float[] array with the XYZ-ordered sub-volume
+     * @param x        start X position, in pixels
+     * @param y        start Y position, in pixels
+     * @param z        start Z position, in pixels
+     * @param c        the channel to write to
+     * @param t        the timepoint to write to
+     * @param w        the width of the sub-volume
+     * @param h        the height of the sub-volume
+     * @param d        the number of slices of the sub-volume
+     * @throws Error an Imaris Error
+     */
+    public static void writeBlock(IDataSetPrx dataset, int bitDepth, Object block, int x, int y, int z, int c, int t, int w, int h, int d) throws Error {
+        if ((long) w * h * d * (bitDepth / 8) > maxRequestBytes) {
+            writeTiled(dataset, bitDepth, block, x, y, z, c, t, w, h, d);
+            return;
+        }
+        PlaneCache.invalidate(dataset, c, t);
+        long start = System.nanoTime();
+        switch (bitDepth) {
+            case 8:
+                dataset.SetDataSubVolumeAs1DArrayBytes((byte[]) block, x, y, z, c, t, w, h, d);
+                break;
+            case 16:
+                dataset.SetDataSubVolumeAs1DArrayShorts((short[]) block, x, y, z, c, t, w, h, d);
+                break;
+            case 32:
+                dataset.SetDataSubVolumeAs1DArrayFloats((float[]) block, x, y, z, c, t, w, h, d);
+                break;
+            default:
+                throw new Error("Unsupported Pixel Type", "Unsupported bit depth: " + bitDepth, "");
+        }
+        // Again once written, for cached reads which started while the write was running
+        PlaneCache.invalidate(dataset, c, t);
+        TransferMonitor.get().record((long) w * h * d * (bitDepth / 8), System.nanoTime() - start);
+    }
+
+    /**
+     * Reads a sub-volume that is too large for a single request, as Z slabs if a plane fits in a request,
+     * or as XY tiles of single slices otherwise
+     */
+    private static Object readTiled(IDataSetPrx dataset, int bitDepth, int x, int y, int z, int c, int t, int w, int h, int d) throws Error {
+        Object block = PixelConverter.newArray(bitDepth, w * h * d);
+        int[] tile = getTileSize(w, h, bitDepth);
+        int planeSize = w * h;
+
+        if (tile[0] == w && tile[1] == h) {
+            int slab = tile[2];
+            for (int zi = 0; zi < d; zi += slab) {
+                int dz = Math.min(slab, d - zi);
+                Object part = readBlock(dataset, bitDepth, x, y, z + zi, c, t, w, h, dz);
+                System.arraycopy(part, 0, block, zi * planeSize, dz * planeSize);
+            }
+            return block;
+        }
+
+        for (int zi = 0; zi < d; zi++) {
+            for (int ty = 0; ty < h; ty += tile[1]) {
+                for (int tx = 0; tx < w; tx += tile[0]) {
+                    int tw = Math.min(tile[0], w - tx);
+                    int th = Math.min(tile[1], h - ty);
+                    Object part = readBlock(dataset, bitDepth, x + tx, y + ty, z + zi, c, t, tw, th, 1);
+                    for (int row = 0; row < th; row++) {
+                        System.arraycopy(part, row * tw, block, zi * planeSize + (ty + row) * w + tx, tw);
+                    }
+                }
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Writes a sub-volume that is too large for a single request, as Z slabs if a plane fits in a request,
+     * or as XY tiles of single slices otherwise
+     */
+    private static void writeTiled(IDataSetPrx dataset, int bitDepth, Object block, int x, int y, int z, int c, int t, int w, int h, int d) throws Error {
+        int[] tile = getTileSize(w, h, bitDepth);
+        int planeSize = w * h;
+
+        if (tile[0] == w && tile[1] == h) {
+            int slab = tile[2];
+            for (int zi = 0; zi < d; zi += slab) {
+                int dz = Math.min(slab, d - zi);
+                Object part = PixelConverter.newArray(bitDepth, dz * planeSize);
+                System.arraycopy(block, zi * planeSize, part, 0, dz * planeSize);
+                writeBlock(dataset, bitDepth, part, x, y, z + zi, c, t, w, h, dz);
+            }
+            return;
+        }
+
+        for (int zi = 0; zi < d; zi++) {
+            for (int ty = 0; ty < h; ty += tile[1]) {
+                for (int tx = 0; tx < w; tx += tile[0]) {
+                    int tw = Math.min(tile[0], w - tx);
+                    int th = Math.min(tile[1], h - ty);
+                    Object part = PixelConverter.newArray(bitDepth, tw * th);
+                    for (int row = 0; row < th; row++) {
+                        System.arraycopy(block, zi * planeSize + (ty + row) * w + tx, part, row * tw, tw);
+                    }
+                    writeBlock(dataset, bitDepth, part, x + tx, y + ty, z + zi, c, t, tw, th, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes whole-plane labels into a label image, split like {@link #writeBlock} into Z slabs or XY tiles when the
+     * sub-volume is larger than a request
+     *
+     * @param labelImage the label image to write to
+     * @param block      the XYZ-ordered labels, w * h * d of them
+     * @param z          start Z position, in pixels
+     * @param t          the timepoint to write to
+     * @param w          the width of the label image
+     * @param h          the height of the label image
+     * @param d          the number of slices of the sub-volume
+     * @throws Error an Imaris Error
+     */
+    static void writeLabelBlock(ILabelImagePrx labelImage, int[] block, int z, int t, int w, int h, int d) throws Error {
+        if ((long) w * h * d * 4 <= maxRequestBytes) {
+            writeLabelTile(labelImage, block, 0, 0, z, t, w, h, d);
+            return;
+        }
+
+        int[] tile = getTileSize(w, h, 32);
+        int planeSize = w * h;
+
+        if (tile[0] == w && tile[1] == h) {
+            int slab = tile[2];
+            for (int zi = 0; zi < d; zi += slab) {
+                int dz = Math.min(slab, d - zi);
+                int[] part = new int[dz * planeSize];
+                System.arraycopy(block, zi * planeSize, part, 0, part.length);
+                writeLabelTile(labelImage, part, 0, 0, z + zi, t, w, h, dz);
+            }
+            return;
+        }
+
+        for (int zi = 0; zi < d; zi++) {
+            for (int ty = 0; ty < h; ty += tile[1]) {
+                for (int tx = 0; tx < w; tx += tile[0]) {
+                    int tw = Math.min(tile[0], w - tx);
+                    int th = Math.min(tile[1], h - ty);
+                    int[] part = new int[tw * th];
+                    for (int row = 0; row < th; row++) {
+                        System.arraycopy(block, zi * planeSize + (ty + row) * w + tx, part, row * tw, tw);
+                    }
+                    writeLabelTile(labelImage, part, tx, ty, z + zi, t, tw, th, 1);
+                }
+            }
+        }
+    }
+
+    private static void writeLabelTile(ILabelImagePrx labelImage, int[] part, int x, int y, int z, int t, int w, int h, int d) throws Error {
+        long start = System.nanoTime();
+        labelImage.SetDataSubVolumeAs1DArrayInts(part, x, y, z, t, w, h, d);
+        TransferMonitor.get().record((long) part.length * 4, System.nanoTime() - start);
+    }
+
+    /**
+     * Finds the largest request that fits in {@link #getMaxRequestBytes()}: whole planes and a number of slices if a
+     * plane fits, full-width bands of rows if a row fits, or pieces of rows otherwise
+     *
+     * @return {tileWidth, tileHeight, slices}
+     */
+    private static int[] getTileSize(int w, int h, int bitDepth) {
+        long bytesPerPixel = bitDepth / 8;
+        long rowBytes = w * bytesPerPixel;
+        long planeBytes = rowBytes * h;
+
+        if (planeBytes <= maxRequestBytes) {
+            return new int[]{w, h, (int) Math.max(1, maxRequestBytes / planeBytes)};
+        }
+        if (rowBytes <= maxRequestBytes) {
+            return new int[]{w, (int) (maxRequestBytes / rowBytes), 1};
+        }
+        return new int[]{(int) Math.max(1, maxRequestBytes / bytesPerPixel), 1, 1};
+    }
+
+    /**
+     * Reads consecutive slices of one channel and timepoint, grouping them into as few calls as possible
+     *
+     * @param dataset  the dataset to read from
+     * @param bitDepth the bit depth of the dataset, 8, 16 or 32
+     * @param x        start X position, in pixels
+     * @param y        start Y position, in pixels
+     * @param zStart   first slice to read
+     * @param c        the channel to read
+     * @param t        the timepoint to read
+     * @param w        the width of the planes
+     * @param h        the height of the planes
+     * @param nSlices  the number of slices to read
+     * @return one pixel array per slice, ready to be used by an ImageProcessor
+     * @throws Error an Imaris Error
+     */
+    public static Object[] readSlices(IDataSetPrx dataset, int bitDepth, int x, int y, int zStart, int c, int t, int w, int h, int nSlices) throws Error {
+        Object[] planes = new Object[nSlices];
+        int blockZ = getSlicesPerBlock(w, h, bitDepth, nSlices);
+
+        for (int z = 0; z < nSlices; z += blockZ) {
+            int d = Math.min(blockZ, nSlices - z);
+            Object block = readBlock(dataset, bitDepth, x, y, zStart + z, c, t, w, h, d);
+            splitBlock(block, w * h, planes, z, d);
+        }
+        return planes;
+    }
+
+    /**
+     * Writes consecutive slices of one channel and timepoint, grouping them into as few calls as possible
+     *
+     * @param dataset  the dataset to write to
+     * @param bitDepth the bit depth of the dataset, 8, 16 or 32
+     * @param planes   one pixel array per slice, all of size w*h and matching the bit depth
+     * @param x        start X position, in pixels
+     * @param y        start Y position, in pixels
+     * @param zStart   first slice to write to
+     * @param c        the channel to write to
+     * @param t        the timepoint to write to
+     * @param w        the width of the planes
+     * @param h        the height of the planes
+     * @throws Error an Imaris Error
+     */
+    public static void writeSlices(IDataSetPrx dataset, int bitDepth, Object[] planes, int x, int y, int zStart, int c, int t, int w, int h) throws Error {
+        int nSlices = planes.length;
+        int blockZ = getSlicesPerBlock(w, h, bitDepth, nSlices);
+
+        // The slab buffer is reused between calls, only the last one may be smaller
+        Object buffer = null;
+        for (int z = 0; z < nSlices; z += blockZ) {
+            int d = Math.min(blockZ, nSlices - z);
+            Object block;
+            if (d == 1) {
+                block = planes[z];
+            } else {
+                if (buffer == null || Array.getLength(buffer) != d * w * h) {
+                    buffer = Array.newInstance(planes[z].getClass().getComponentType(), d * w * h);
+                }
+                mergeBlock(planes, z, d, w * h, buffer);
+                block = buffer;
+            }
+            writeBlock(dataset, bitDepth, block, x, y, zStart + z, c, t, w, h, d);
+        }
+    }
+
+    /**
+     * Reads a sub-volume for several channels and timepoints, keeping up to {@link #getThreads()} blocks in flight.
+     * Each (channel, timepoint) volume is split into Z slabs as per {@link #getSlicesPerBlock(int, int, int, int)}
+     *
+     * @param dataset    the dataset to read from
+     * @param bitDepth   the bit depth of the dataset, 8, 16 or 32
+     * @param x          start X position, in pixels
+     * @param y          start Y position, in pixels
+     * @param zStart     first slice to read
+     * @param w          the width of the planes
+     * @param h          the height of the planes
+     * @param nSlices    the number of slices to read
+     * @param channels   the 0-based channels to read
+     * @param timepoints the 0-based timepoints to read
+     * @param consumer   receives each plane, with indices relative to the request
+     * @throws Error an Imaris Error, the first one thrown by any of the blocks
+     */
+    public static void read(IDataSetPrx dataset, int bitDepth, int x, int y, int zStart, int w, int h, int nSlices,
+                            int[] channels, int[] timepoints, PlaneConsumer consumer) throws Error {
+        int blockZ = getSlicesPerBlock(w, h, bitDepth, nSlices);
+        List<Task> tasks = new ArrayList<>();
+
+        for (int ci = 0; ci < channels.length; ci++) {
+            for (int ti = 0; ti < timepoints.length; ti++) {
+                for (int z = 0; z < nSlices; z += blockZ) {
+                    final int c = ci, t = ti, zi = z;
+                    final int d = Math.min(blockZ, nSlices - z);
+                    tasks.add(() -> {
+                        Object block = readBlock(dataset, bitDepth, x, y, zStart + zi, channels[c], timepoints[t], w, h, d);
+                        Object[] planes = new Object[d];
+                        splitBlock(block, w * h, planes, 0, d);
+                        for (int i = 0; i < d; i++) {
+                            consumer.accept(c, zi + i, t, planes[i]);
+                        }
+                    });
+                }
+            }
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Writes a sub-volume for several channels and timepoints, keeping up to {@link #getThreads()} blocks in flight.
+     * Each (channel, timepoint) volume is split into Z slabs as per {@link #getSlicesPerBlock(int, int, int, int)}
+     *
+     * @param dataset    the dataset to write to
+     * @param bitDepth   the bit depth of the dataset, 8, 16 or 32
+     * @param x          start X position, in pixels
+     * @param y          start Y position, in pixels
+     * @param zStart     first slice to write to
+     * @param w          the width of the planes
+     * @param h          the height of the planes
+     * @param nSlices    the number of slices to write
+     * @param channels   the 0-based channels to write to
+     * @param timepoints the 0-based timepoints to write to
+     * @param supplier   provides each plane, with indices relative to the request
+     * @throws Error an Imaris Error, the first one thrown by any of the blocks
+     */
+    public static void write(IDataSetPrx dataset, int bitDepth, int x, int y, int zStart, int w, int h, int nSlices,
+                             int[] channels, int[] timepoints, PlaneSupplier supplier) throws Error {
+        int blockZ = getSlicesPerBlock(w, h, bitDepth, nSlices);
+        List<Task> tasks = new ArrayList<>();
+
+        for (int ci = 0; ci < channels.length; ci++) {
+            for (int ti = 0; ti < timepoints.length; ti++) {
+                for (int z = 0; z < nSlices; z += blockZ) {
+                    final int c = ci, t = ti, zi = z;
+                    final int d = Math.min(blockZ, nSlices - z);
+                    tasks.add(() -> {
+                        Object[] planes = new Object[d];
+                        for (int i = 0; i < d; i++) {
+                            planes[i] = supplier.get(c, zi + i, t);
+                        }
+                        Object block = planes[0];
+                        if (d > 1) {
+                            block = Array.newInstance(planes[0].getClass().getComponentType(), d * w * h);
+                            mergeBlock(planes, 0, d, w * h, block);
+                        }
+                        writeBlock(dataset, bitDepth, block, x, y, zStart + zi, channels[c], timepoints[t], w, h, d);
+                    });
+                }
+            }
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Same as {@link #write(IDataSetPrx, int, int, int, int, int, int, int, int[], int[], PlaneSupplier)}, but the
+     * planes given by the supplier can be of any type and are converted to the bit depth of the dataset while each
+     * block is assembled, into a buffer reused by the worker thread. Neither the source nor the dataset are converted
+     * as a whole
+     *
+     * @param dataset    the dataset to write to
+     * @param bitDepth   the bit depth of the dataset
+     * @param x          start X position, in pixels
+     * @param y          start Y position, in pixels
+     * @param zStart     first slice to write
+     * @param w          width, in pixels
+     * @param h          height, in pixels
+     * @param nSlices    number of slices to write
+     * @param channels   the dataset channels to write, in order
+     * @param timepoints the dataset timepoints to write, in order
+     * @param supplier   provides byte[], short[] or float[] planes, with indices relative to the request
+     * @param converter  how to convert pixel values
+     * @throws Error an Imaris Error
+     */
+    public static void write(IDataSetPrx dataset, int bitDepth, int x, int y, int zStart, int w, int h, int nSlices,
+                             int[] channels, int[] timepoints, PlaneSupplier supplier, PixelConverter converter) throws Error {
+        int blockZ = getSlicesPerBlock(w, h, bitDepth, nSlices);
+        int planeSize = w * h;
+        List<Task> tasks = new ArrayList<>();
+
+        for (int ci = 0; ci < channels.length; ci++) {
+            for (int ti = 0; ti < timepoints.length; ti++) {
+                for (int z = 0; z < nSlices; z += blockZ) {
+                    final int c = ci, t = ti, zi = z;
+                    final int d = Math.min(blockZ, nSlices - z);
+                    tasks.add(() -> {
+                        // The buffer is only used until writeBlock returns, so it can be reused by the next task
+                        Object block = PixelConverter.getBlockBuffer(bitDepth, d * planeSize);
+                        for (int i = 0; i < d; i++) {
+                            converter.convert(supplier.get(c, zi + i, t), 0, block, i * planeSize, planeSize);
+                        }
+                        writeBlock(dataset, bitDepth, block, x, y, zStart + zi, channels[c], timepoints[t], w, h, d);
+                    });
+                }
+            }
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Convenience method to build the array {0, 1, ..., n-1}, to request all channels or timepoints
+     *
+     * @param n the number of elements
+     * @return an array with all indices from 0 to n-1
+     */
+    public static int[] range(int n) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) indices[i] = i;
+        return indices;
+    }
+
+    /**
+     * Runs all tasks on the shared worker pool and waits for them to complete.
+     * Tasks run inline if there is a single thread, a single task, or if we are already on a worker thread
+     *
+     * @param tasks the tasks to run
+     * @throws Error the first Imaris Error thrown by any of the tasks
+     */
+    static void runAll(List<Task> tasks) throws Error {
+        TransferMonitor monitor = TransferMonitor.get();
+        TransferMonitor.Operation operation = monitor.begin("Transferring data", tasks.size());
+        try {
+            if (nThreads == 1 || tasks.size() <= 1 || isWorker.get()) {
+                for (Task task : tasks) {
+                    task.run();
+                    monitor.step(operation);
+                }
+                return;
+            }
+            runOnPool(tasks, monitor, operation);
+        } finally {
+            monitor.end(operation);
+        }
+    }
+
+    private static void runOnPool(List<Task> tasks, TransferMonitor monitor, TransferMonitor.Operation operation) throws Error {
+        ExecutorService executor = getPool();
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            futures.add(executor.submit(() -> {
+                // Tasks which had not started when the transfer was cancelled stop here
+                monitor.checkCancelled(operation);
+                // Operations begun by the task are nested in ours
+                monitor.setCurrent(operation);
+                try {
+                    task.run();
+                } finally {
+                    monitor.setCurrent(null);
+                }
+                monitor.step(operation);
+                return null;
+            }));
+        }
+
+        Error error = null;
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = asError(e.getCause());
+                        // No need to continue, cancel what has not started yet
+                        futures.forEach(f -> f.cancel(false));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new Error("Transfer Interrupted", "The transfer with Imaris was interrupted", "");
+        }
+        if (error != null) throw error;
+    }
+
+    private static Error asError(Throwable cause) {
+        if (cause instanceof Error) return (Error) cause;
+        log.severe("Transfer failed: " + cause);
+        Error error = new Error("Transfer Error", String.valueOf(cause.getMessage()), cause.getClass().getName());
+        error.initCause(cause);
+        return error;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(nThreads, runnable -> {
+                Thread thread = new Thread(() -> {
+                    isWorker.set(true);
+                    runnable.run();
+                }, "EasyXT-Transfer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Splits an XYZ-ordered block into individual planes
+     *
+     * @param block     the block, as returned by {@link #readBlock(IDataSetPrx, int, int, int, int, int, int, int, int, int)}
+     * @param planeSize number of pixels in a plane
+     * @param planes    the array that will receive the planes
+     * @param offset    the index of the first plane of the block in the planes array
+     * @param d         the number of slices in the block
+     */
+    static void splitBlock(Object block, int planeSize, Object[] planes, int offset, int d) {
+        // No need to copy anything if the block is a single plane
+        if (d == 1) {
+            planes[offset] = block;
+            return;
+        }
+        Class<?> type = block.getClass().getComponentType();
+        for (int i = 0; i < d; i++) {
+            Object plane = Array.newInstance(type, planeSize);
+            System.arraycopy(block, i * planeSize, plane, 0, planeSize);
+            planes[offset + i] = plane;
+        }
+    }
+
+    /**
+     * Copies individual planes into an XYZ-ordered block
+     *
+     * @param planes    the planes to copy
+     * @param offset    the index of the first plane to copy
+     * @param d         the number of planes to copy
+     * @param planeSize number of pixels in a plane
+     * @param block     the block to fill, of size d*planeSize at least
+     */
+    static void mergeBlock(Object[] planes, int offset, int d, int planeSize, Object block) {
+        for (int i = 0; i < d; i++) {
+            System.arraycopy(planes[offset + i], 0, block, i * planeSize, planeSize);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import ij.measure.Calibration;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.logging.Logger;
+
+/**
+ * Streams ImgLib2 images into Imaris datasets, block by block.
+ * The source is only read one plane at a time while the planes of a Z slab are being sent, so lazily computed
+ * images (a filtered view, a {@link net.imglib2.cache.img.CachedCellImg}, ...) can be sent to Imaris without ever
+ * holding the whole result in memory. Pixel values are converted to the bit depth of the dataset as each block is
+ * sent, keeping them and clipping them to the range of the type, see {@link PixelConverter#clamp()}.
+ * <p>
+ * Source images are expected in the Imaris order X, Y, Z, C, T, like the images of {@link ImarisCachedCellImg}.
+ * Images with less than 5 dimensions are completed with single element dimensions (XY, XYZ, XYZC).
+ */
+public class DatasetWriter {
+
+    private static final Logger log = Logger.getLogger(DatasetWriter.class.getName());
+
+    /**
+     * Creates a new dataset with the size of the image and streams the image into it
+     *
+     * @param image    the XYZCT image to send
+     * @param bitDepth the bit depth of the new dataset, 8, 16 or 32
+     * @param cal      the voxel size and origin of the new dataset, as in {@link EasyXT.Dataset#matchDimensionsFromImagePlus}
+     * @param <T>      the pixel type of the image
+     * @return the new dataset
+     * @throws Error an Imaris Error
+     */
+    public static <T extends RealType<T>> IDataSetPrx create(RandomAccessibleInterval<T> image, int bitDepth, Calibration cal) throws Error {
+        RandomAccessibleInterval<T> source = asXYZCT(image);
+        int w = (int) source.dimension(0);
+        int h = (int) source.dimension(1);
+        int d = (int) source.dimension(2);
+        int nc = (int) source.dimension(3);
+        int nt = (int) source.dimension(4);
+
+        IDataSetPrx dataset = EasyXT.Utils.getImarisApp().GetFactory().CreateDataSet();
+        dataset.Create(EasyXT.Utils.getImarisDatasetType(bitDepth), w, h, d, nc, nt);
+
+        dataset.SetExtendMinX((float) (cal.xOrigin * cal.pixelWidth));
+        dataset.SetExtendMinY((float) (cal.yOrigin * cal.pixelHeight));
+        dataset.SetExtendMinZ((float) (cal.zOrigin * cal.pixelDepth));
+
+        dataset.SetExtendMaxX((float) ((cal.xOrigin + w) * cal.pixelWidth));
+        dataset.SetExtendMaxY((float) ((cal.yOrigin + h) * cal.pixelHeight));
+        dataset.SetExtendMaxZ((float) ((cal.zOrigin + d) * cal.pixelDepth));
+
+        write(source, dataset, 0, 0, 0, 0, 0);
+        return dataset;
+    }
+
+    /**
+     * Streams the image into an existing dataset, starting at the origin
+     *
+     * @param image   the XYZCT image to send
+     * @param dataset the dataset to write into
+     * @param <T>     the pixel type of the image
+     * @throws Error an Imaris Error, also if the image does not fit in the dataset
+     */
+    public static <T extends RealType<T>> void write(RandomAccessibleInterval<T> image, IDataSetPrx dataset) throws Error {
+        write(image, dataset, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Streams the image into an existing dataset, at a given position
+     *
+     * @param image   the XYZCT image to send
+     * @param dataset the dataset to write into
+     * @param x       start X position in the dataset, in pixels
+     * @param y       start Y position in the dataset, in pixels
+     * @param z       start Z position in the dataset, in pixels
+     * @param c       first channel of the dataset to write to
+     * @param t       first timepoint of the dataset to write to
+     * @param <T>     the pixel type of the image
+     * @throws Error an Imaris Error, also if the image does not fit in the dataset
+     */
+    public static <T extends RealType<T>> void write(RandomAccessibleInterval<T> image, IDataSetPrx dataset, int x, int y, int z, int c, int t) throws Error {
+        RandomAccessibleInterval<T> source = asXYZCT(image);
+        int w = (int) source.dimension(0);
+        int h = (int) source.dimension(1);
+        int d = (int) source.dimension(2);
+        int nc = (int) source.dimension(3);
+        int nt = (int) source.dimension(4);
+
+        if (x + w > dataset.GetSizeX() || y + h > dataset.GetSizeY() || z + d > dataset.GetSizeZ() ||
+                c + nc > dataset.GetSizeC() || t + nt > dataset.GetSizeT()) {
+            String errorDetail = "Dataset\t(X,\tY,\tZ,\tC,\tT):\t (" + dataset.GetSizeX() + ",\t" + dataset.GetSizeY() + ",\t" + dataset.GetSizeZ() + ",\t" + dataset.GetSizeC() + ",\t" + dataset.GetSizeT() + ")";
+            errorDetail += "\nIncl. offset\t(X,\tY,\tZ,\tC,\tT):\t (" + (x + w) + ",\t" + (y + h) + ",\t" + (z + d) + ",\t" + (c + nc) + ",\t" + (t + nt) + ")";
+            throw new Error("Size Mismatch", "Image does not fit in the dataset", errorDetail);
+        }
+
+        int bitDepth = EasyXT.Dataset.getBitDepth(dataset);
+
+        int[] channels = new int[nc];
+        for (int i = 0; i < nc; i++) channels[i] = c + i;
+        int[] timepoints = new int[nt];
+        for (int i = 0; i < nt; i++) timepoints[i] = t + i;
+
+        log.info("Streaming image of size (" + w + ", " + h + ", " + d + ", " + nc + ", " + nt + ") to Imaris");
+
+        // Each plane is only computed when its block is sent
+        DatasetTransfer.write(dataset, bitDepth, x, y, z, w, h, d, channels, timepoints,
+                (ci, zi, ti) -> getPlane(source, zi, ci, ti), PixelConverter.clamp());
+    }
+
+    /**
+     * Extracts one XY plane of a 5D image as floats, to be converted to the bit depth of the dataset when it is sent
+     *
+     * @param source the XYZCT image, with a zero min
+     * @param z      the slice
+     * @param c      the channel
+     * @param t      the timepoint
+     * @param <T>    the pixel type of the image
+     * @return a float[] array with the plane
+     */
+    static <T extends RealType<T>> float[] getPlane(RandomAccessibleInterval<T> source, int z, int c, int t) {
+        int w = (int) source.dimension(0);
+        int h = (int) source.dimension(1);
+
+        RandomAccessibleInterval<T> plane = Views.interval(source, new long[]{0, 0, z, c, t}, new long[]{w - 1, h - 1, z, c, t});
+        Cursor<T> cursor = Views.flatIterable(plane).cursor();
+
+        float[] pixels = new float[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = cursor.next().getRealFloat();
+        }
+        return pixels;
+    }
+
+    /**
+     * Completes an image with single element dimensions until it has 5 dimensions, and moves it to the origin
+     */
+    static <T> RandomAccessibleInterval<T> asXYZCT(RandomAccessibleInterval<T> image) {
+        RandomAccessibleInterval<T> source = Views.zeroMin(image);
+        while (source.numDimensions() < 5) {
+            source = Views.addDimension(source, 0, 0);
+        }
+        return source;
+    }
+}
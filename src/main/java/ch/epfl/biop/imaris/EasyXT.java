@@ -30,13 +30,14 @@ import ij.*;
 import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.Concatenator;
-import ij.plugin.Duplicator;
-import ij.plugin.HyperStackConverter;
 import ij.process.*;
 import mcib3d.geom.ObjectCreator3D;
 import mcib3d.geom.Point3D;
 import mcib3d.geom.Vector3D;
 import net.imagej.ImageJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.awt.*;
@@ -75,6 +76,9 @@ public class EasyXT {
     public static Map<tType, Integer> datatype;
     public static Logger log = Logger.getLogger(EasyXT.class.getName());
     private static BPImarisLib vImarisLib;
+    // Used instead of ImarisLib when transport settings are given
+    private static Ice.Communicator communicator;
+    private static TransportSettings transportSettings;
 
     /*
       Static initialisation :
@@ -120,6 +124,10 @@ public class EasyXT {
             log.info("Closing existing ImarisLib connection");
             vImarisLib.Disconnect();
             vImarisLib = null;
+        } else if (communicator != null) {
+            log.info("Closing existing ICE connection");
+            communicator.destroy();
+            communicator = null;
         } else {
             log.info("No ImarisLib connection to close");
         }
@@ -855,13 +863,35 @@ public class EasyXT {
         }
 
         /**
-         * Set data from an ImagePlus image into a dataset
+         * Set data from an ImagePlus image into a dataset, keeping the bit depth of the dataset. If the bit depths
+         * differ, values are kept and clipped to the range of the dataset type, block by block as they are sent,
+         * see {@link PixelConverter#clamp()}. Use {@link #setFromImagePlus(IDataSetPrx, ImagePlus, PixelConverter)}
+         * to rescale them instead
          *
          * @param imp     the original image plus
          * @param dataset the dataset to insert the imagePlus into
          * @throws Error an Imaris Error Object
          */
         public static void setFromImagePlus(IDataSetPrx dataset, ImagePlus imp) throws Error {
+            int dBitDepth = getBitDepth(dataset);
+            if (dBitDepth != imp.getBitDepth()) {
+                log.warning("Provided dataset bitdepth (" + dBitDepth + "-bit) differs from image bitdepth ("
+                        + imp.getBitDepth() + "-bit), values are clipped to the range of the dataset");
+            }
+            setFromImagePlus(dataset, imp, PixelConverter.clamp());
+        }
+
+        /**
+         * Set data from an ImagePlus image into a dataset, keeping the bit depth of the dataset. Pixel values are
+         * converted with the given converter, block by block as they are sent, so that neither the dataset nor the
+         * image need to be converted as a whole
+         *
+         * @param dataset   the dataset to insert the imagePlus into
+         * @param imp       the original image plus, which is not modified
+         * @param converter how to convert pixel values if the bit depths differ
+         * @throws Error an Imaris Error Object
+         */
+        public static void setFromImagePlus(IDataSetPrx dataset, ImagePlus imp, PixelConverter converter) throws Error {
 
             ImarisCalibration cal = new ImarisCalibration(dataset);
 
@@ -869,53 +899,36 @@ public class EasyXT {
             if (!cal.isSameSize(imp))
                 throw new Error("Inconsistent Sizes", "ImagePlus does not have the same dimensions as dataset", "");
 
-            int w = cal.xSize;
-            int h = cal.ySize;
-
-            int nc = cal.cSize;
-            int nz = cal.zSize;
-            int nt = cal.tSize;
-
             int dBitDepth = getBitDepth(dataset);
-            int iBitDepth = imp.getBitDepth();
+            DatasetTransfer.write(dataset, dBitDepth, 0, 0, 0, cal.xSize, cal.ySize, cal.zSize,
+                    DatasetTransfer.range(cal.cSize), DatasetTransfer.range(cal.tSize),
+                    Utils.planeSupplier(imp, 0), converter);
+            // Display ranges are only meaningful if values were not rescaled
+            setChannelDisplay(dataset, imp, 0, dBitDepth == imp.getBitDepth() || converter.getPolicy() == PixelConverter.Policy.CLAMP);
+        }
 
-            // Ideally we need to convert the bit depth of the dataset to that of the ImagePlus
-            if (dBitDepth != iBitDepth) {
-                log.warning("Provided dataset bitdepth (" + dBitDepth + "-bit)differs from image bitdepth (" + iBitDepth + "-bit)");
-                log.warning("   dataset will be changed to (" + iBitDepth + " bits");
-                Dataset.setBitDepth(iBitDepth, dataset);
-                dBitDepth = iBitDepth;
-            }
-            for (int c = 0; c < nc; c++) {
-                for (int z = 0; z < nz; z++) {
-                    for (int t = 0; t < nt; t++) {
-                        int idx = imp.getStackIndex(c + 1, z + 1, t + 1);
-                        ImageProcessor ip = imp.getStack().getProcessor(idx);
-                        switch (dBitDepth) {
-                            case 8:
-                                dataset.SetDataSubVolumeAs1DArrayBytes(((byte[]) ip.getPixels()), 0, 0, z, c, t, w, h, 1);
-                                break;
-                            case 16:
-                                dataset.SetDataSubVolumeAs1DArrayShorts((short[]) ip.getPixels(), 0, 0, z, c, t, w, h, 1);
-                                break;
-                            case 32:
-                                dataset.SetDataSubVolumeAs1DArrayFloats((float[]) ip.getPixels(), 0, 0, z, c, t, w, h, 1);
-                                break;
-                        }
-                    }
-                }
-            }
+        /**
+         * Copies the channel colors and display ranges of an ImagePlus to a dataset, starting at a given channel of
+         * the dataset
+         */
+        private static void setChannelDisplay(IDataSetPrx dataset, ImagePlus imp, int cOffset, boolean setRange) throws Error {
             // Set channel color and range for dataset
             for (int c = 0; c < imp.getNChannels(); c++) {
                 imp.setC(c + 1);
                 // Set the color based on the last color in the LUT of this image
+                Color color;
                 if (imp instanceof CompositeImage) {
                     CompositeImage cimp = (CompositeImage) imp;
                     cimp.setC(c + 1);
-                    Color color = cimp.getChannelColor();
-                    dataset.SetChannelColorRGBA(c, Utils.getRGBAColor(color));
+                    color = cimp.getChannelColor();
+                } else {
+                    int idx = imp.getStackIndex(c + 1, 1, 1);
+                    color = new Color(imp.getStack().getProcessor(idx).getColorModel().getRGB(255));
+                }
+                dataset.SetChannelColorRGBA(c + cOffset, Utils.getRGBAColor(color));
+                if (setRange) {
+                    dataset.SetChannelRange(c + cOffset, (float) imp.getDisplayRangeMin(), (float) imp.getDisplayRangeMax());
                 }
-                dataset.SetChannelRange(c, (float) imp.getDisplayRangeMin(), (float) imp.getDisplayRangeMax());
             }
         }
 
@@ -970,83 +983,116 @@ public class EasyXT {
         }
 
         /**
-         * Returns an ImagePlus image of a dataset TODO : add a way to select only a subpart of it
+         * Returns an ImagePlus image of a dataset. Use {@link #query(IDataSetPrx)} to get only a sub-part of it
          *
          * @param dataset an imaris dataset
          * @return an ImagePlus of a dataset
          * @throws Error an Imaris Error
          */
         public static ImagePlus getImagePlus(IDataSetPrx dataset) throws Error {
+            return new DatasetQuery(dataset).get();
+        }
 
-            ImarisCalibration cal = new ImarisCalibration(dataset);
-
-            int w = cal.xSize;
-            int h = cal.ySize;
-
-            int nc = cal.cSize;
-            int nz = cal.zSize;
-            int nt = cal.tSize;
-
-            int bitDepth = getBitDepth(dataset);
-
-            ImageStack stack = ImageStack.create(w, h, nc * nz * nt, bitDepth);
-            ImagePlus imp = new ImagePlus(Utils.getImarisApp().GetCurrentFileName(), stack);
-            imp.setDimensions(nc, nz, nt);
-
-            for (int c = 0; c < nc; c++) {
-                for (int z = 0; z < nz; z++) {
-                    for (int t = 0; t < nt; t++) {
-                        int idx = imp.getStackIndex(c + 1, z + 1, t + 1);
-                        ImageProcessor ip;
-                        switch (bitDepth) {
-                            case 8:
-                                byte[] dataB = dataset.GetDataSubVolumeAs1DArrayBytes(0, 0, z, c, t, w, h, 1);
-                                ip = new ByteProcessor(w, h, dataB, null);
-                                stack.setProcessor(ip, idx);
-                                break;
-                            case 16:
-                                short[] dataS = dataset.GetDataSubVolumeAs1DArrayShorts(0, 0, z, c, t, w, h, 1);
-                                ip = new ShortProcessor(w, h, dataS, null);
-                                stack.setProcessor(ip, idx);
-                                break;
-                            case 32:
-                                float[] dataF = dataset.GetDataSubVolumeAs1DArrayFloats(0, 0, z, c, t, w, h, 1);
-                                ip = new FloatProcessor(w, h, dataF, null);
-                                stack.setProcessor(ip, idx);
-                                break;
-                        }
-                    }
-                }
-            }
-
-            imp.setStack(stack);
-            imp.setCalibration(cal);
-
-            if (nc * nz * nt > 1) imp = HyperStackConverter.toHyperStack(imp, nc, nz, nt);
+        /**
+         * Returns a downsampled ImagePlus of a dataset, useful for previews and thumbnails.
+         * The data is resampled in Imaris before being transferred, see {@link DatasetQuery#selectResolutionLevel(int)}
+         *
+         * @param dataset         an imaris dataset
+         * @param resolutionLevel 0 for full resolution, each level halves the size in X, Y and Z
+         * @return an ImagePlus of a dataset, calibrated to match the downsampling
+         * @throws Error an Imaris Error
+         */
+        public static ImagePlus getImagePlus(IDataSetPrx dataset, int resolutionLevel) throws Error {
+            return new DatasetQuery(dataset).selectResolutionLevel(resolutionLevel).get();
+        }
 
-            // Set LookUpTables
-            if (imp instanceof CompositeImage) {
+        /**
+         * Returns a virtual ImagePlus of a dataset. Planes are only read from Imaris when they are displayed or
+         * processed, and are kept in a bounded cache. See {@link ImarisVirtualStack}
+         *
+         * @param dataset an imaris dataset
+         * @return a virtual ImagePlus of a dataset, with the same calibration and LUTs as {@link #getImagePlus(IDataSetPrx)}
+         * @throws Error an Imaris Error
+         */
+        public static ImagePlus getVirtualImagePlus(IDataSetPrx dataset) throws Error {
+            return new DatasetQuery(dataset).getVirtual();
+        }
 
-                LUT[] luts = new LUT[nc];
+        /**
+         * Returns a lazily loaded ImgLib2 view of a dataset, with dimensions XYZCT. Blocks are only read from Imaris
+         * when accessed, and dropped when memory runs low. See {@link ImarisCachedCellImg}
+         *
+         * @param dataset an imaris dataset
+         * @param <T>     UnsignedByteType, UnsignedShortType or FloatType, depending on the bit depth of the dataset
+         * @return a cached cell image backed by the dataset
+         * @throws Error an Imaris Error
+         */
+        public static <T extends NativeType<T>> ImarisCachedCellImg<T> getImg(IDataSetPrx dataset) throws Error {
+            return ImarisCachedCellImg.wrap(dataset);
+        }
 
-                for (int c = 0; c < nc; c++) {
-                    Color color = Utils.getColorFromInt(cal.cColorsRGBA[c]);
-                    luts[c] = LUT.createLutFromColor(color);
-                }
+        /**
+         * Streams an ImgLib2 image into an existing dataset, one block at a time, converting pixel values to the bit
+         * depth of the dataset. The image is expected as XYZCT, see {@link DatasetWriter}
+         *
+         * @param image   the image to send, which can be lazily computed
+         * @param dataset the dataset to write into, which must be large enough
+         * @param <T>     the pixel type of the image
+         * @throws Error an Imaris Error
+         */
+        public static <T extends RealType<T>> void setFromImg(RandomAccessibleInterval<T> image, IDataSetPrx dataset) throws Error {
+            DatasetWriter.write(image, dataset);
+        }
 
-                ((CompositeImage) imp).setLuts(luts);
+        /**
+         * Creates a new dataset from an ImgLib2 image, streaming it one block at a time. The image is expected as
+         * XYZCT, see {@link DatasetWriter}
+         *
+         * @param image    the image to send, which can be lazily computed
+         * @param bitDepth the bit depth of the new dataset, 8, 16 or 32
+         * @param cal      the voxel size and origin of the new dataset
+         * @param <T>      the pixel type of the image
+         * @return the new dataset
+         * @throws Error an Imaris Error
+         */
+        public static <T extends RealType<T>> IDataSetPrx create(RandomAccessibleInterval<T> image, int bitDepth, Calibration cal) throws Error {
+            return DatasetWriter.create(image, bitDepth, cal);
+        }
 
-            } else if (nc == 1) {
-                imp.setLut(LUT.createLutFromColor(Utils.getColorFromInt(cal.cColorsRGBA[0])));
-            }
+        /**
+         * Computes the histogram, min, max, mean and standard deviation of each channel and timepoint of a dataset,
+         * streaming it from Imaris without keeping the pixels. See {@link TransferStatistics}
+         *
+         * @param dataset an imaris dataset
+         * @return the statistics of the dataset
+         * @throws Error an Imaris Error
+         */
+        public static TransferStatistics getStatistics(IDataSetPrx dataset) throws Error {
+            return new DatasetQuery(dataset).getStatistics();
+        }
 
-            // Transfer min and max display values.
-            for (int c = 0; c < nc; c++) {
-                imp.setC(c + 1);
-                imp.setDisplayRange(cal.cMin[c], cal.cMax[c]);
-            }
+        /**
+         * Streams a dataset one timepoint at a time, as calibrated 3D ImagePlus, reading the next timepoint while the
+         * current one is being processed. See {@link TimepointStream}
+         *
+         * @param dataset an imaris dataset
+         * @return an iterable over the timepoints, to close when done
+         * @throws Error an Imaris Error
+         */
+        public static TimepointStream streamTimepoints(IDataSetPrx dataset) throws Error {
+            return new TimepointStream(dataset);
+        }
 
-            return imp;
+        /**
+         * Allows to select only a bounding box, some channels or some timepoints of a dataset before transferring it.
+         * See {@link DatasetQuery} for the available options, and call {@link DatasetQuery#get()} to get the ImagePlus
+         *
+         * @param dataset an imaris dataset
+         * @return a {@link DatasetQuery} that extracts the whole dataset unless configured otherwise
+         * @throws Error an Imaris Error
+         */
+        public static DatasetQuery query(IDataSetPrx dataset) throws Error {
+            return new DatasetQuery(dataset);
         }
 
         /**
@@ -1075,22 +1121,26 @@ public class EasyXT {
 
         /**
          * Adds the selected ImagePlus to the current Dataset by appending it as new channels.
-         * To speed things up, but with a higher memory footprint, we first clone the dataset
-         * and append the channels. Finally we replace the current dataset with the new one
-         * This avoids the Imaris GUI refreshing as the dataset is being modified, which is very slow
+         * If the memory budget allows it, we first clone the dataset, append the channels, and replace the current
+         * dataset with the new one. This avoids the Imaris GUI refreshing as the dataset is being modified, which is
+         * very slow. Larger datasets are modified in place, see {@link ChannelAppender}
          *
          * @param imp the image to add to the current dataset
          * @throws Error an Imaris Error object
          */
         public static void addChannels(ImagePlus imp) throws Error {
-            IDataSetPrx dataset = EasyXT.Dataset.getCurrent();
-            IDataSetPrx newDataset = dataset.Clone();
-
-            addChannels(imp, newDataset, 0, 0, 0, 0);
-            setCurrent(newDataset);
+            ChannelAppender.append(imp);
+        }
 
-            // Clear some memory
-            dataset.Dispose();
+        /**
+         * Adds the selected ImagePlus to the current Dataset by appending it as new channels, with a given strategy
+         *
+         * @param imp      the image to add to the current dataset
+         * @param strategy how to modify the current dataset, see {@link ChannelAppender.Strategy}
+         * @throws Error an Imaris Error object
+         */
+        public static void addChannels(ImagePlus imp, ChannelAppender.Strategy strategy) throws Error {
+            ChannelAppender.append(imp, strategy);
         }
 
         /**
@@ -1114,6 +1164,25 @@ public class EasyXT {
          * @throws Error an Imaris Error Object
          */
         public static void addChannels(ImagePlus imp, IDataSetPrx dataset, int xStart, int yStart, int zStart, int tStart) throws Error {
+            addChannels(imp, dataset, xStart, yStart, zStart, tStart, null);
+        }
+
+        /**
+         * Same as {@link #addChannels(ImagePlus, IDataSetPrx, int, int, int, int)}, but pixel values are converted to
+         * the bit depth of the dataset with the given converter, block by block as they are sent. This also allows
+         * images with a higher bit depth than the dataset. The ImagePlus is never modified
+         *
+         * @param imp       the image from which to extract the channels to append
+         * @param dataset   the receiver dataset
+         * @param xStart    start X position, in pixels
+         * @param yStart    start Y position, in pixels
+         * @param zStart    start Z position, in pixels
+         * @param tStart    start T position, in pixels
+         * @param converter how to convert pixel values, or null to only allow converting to a higher bit depth,
+         *                  keeping values
+         * @throws Error an Imaris Error Object
+         */
+        public static void addChannels(ImagePlus imp, IDataSetPrx dataset, int xStart, int yStart, int zStart, int tStart, PixelConverter converter) throws Error {
             // Get Metadata on dataset and image
 
             ImarisCalibration dCal = new ImarisCalibration(dataset);
@@ -1145,16 +1214,16 @@ public class EasyXT {
                 String errorDetail = "   Dataset:" + dBitDepth + "-bit";
                 errorDetail += "\n    Image:" + iBitDepth + "-bit";
                 log.warning("Bit Depth Mismatch : Imaris Dataset and Fiji ImagePlus do not have same bit depth \n " + errorDetail);
-                if (iBitDepth <= dBitDepth) {
-                    // We can convert
-                    if (dBitDepth == 16) new ImageConverter(imp).convertToGray16();
-                    if (dBitDepth == 32) new ImageConverter(imp).convertToGray32();
-                    log.warning("Image converted: " + imp.getBitDepth() + "-bit to match dataset bit depth (" + dBitDepth + "-bit)");
-
-                } else {
-                    log.severe("ImagePlus has higher bit depth than dataset. Cannot convert");
-                    throw new Error("Bit depth Mismatch", "Image is " + iBitDepth + "-bit, dataset is " + dBitDepth + "-bit", "");
+                if (converter == null) {
+                    if (iBitDepth <= dBitDepth) {
+                        // We can convert, values are kept as they are
+                        converter = PixelConverter.clamp();
+                    } else {
+                        log.severe("ImagePlus has higher bit depth than dataset. Cannot convert");
+                        throw new Error("Bit depth Mismatch", "Image is " + iBitDepth + "-bit, dataset is " + dBitDepth + "-bit", "");
+                    }
                 }
+                log.warning("Image data converted on the fly from " + iBitDepth + "-bit to match dataset bit depth (" + dBitDepth + "-bit) using " + converter);
             }
 
             // Issue warning in case voxel sizes do not match
@@ -1170,34 +1239,22 @@ public class EasyXT {
             // Enlarge the dataset by setting its size to the cumulated number of channels
             dataset.SetSizeC(dc + ic);
 
-            // Now loop through the dimensions of the ImagePlus to add data
-            for (int c = 0; c < ic; c++) {
-
-                // Set the color of this channel
-                int idx = imp.getStackIndex(c + 1, 1, 1);
-                int color = imp.getStack().getProcessor(idx).getColorModel().getRGB(255);
-
-                dataset.SetChannelColorRGBA(c, color);
-
-                // Set the volume from arrays
-                for (int z = 0; z < iz; z++) {
-                    for (int t = 0; t < it; t++) {
-                        idx = imp.getStackIndex(c + 1, z + 1, t + 1);
-                        ImageProcessor ip = imp.getStack().getProcessor(idx);
-                        switch (dBitDepth) {
-                            case 8:
-                                dataset.SetDataSubVolumeAs1DArrayBytes(((byte[]) ip.getPixels()), xStart, yStart, zStart + z, c + dc, tStart + t, iw, ih, 1); // last element is sizeZ (one slice at a time)
-                                break;
-                            case 16:
-                                dataset.SetDataSubVolumeAs1DArrayShorts((short[]) ip.getPixels(), xStart, yStart, zStart + z, c + dc, tStart + t, iw, ih, 1);
-                                break;
-                            case 32:
-                                dataset.SetDataSubVolumeAs1DArrayFloats((float[]) ip.getPixels(), xStart, yStart, zStart + z, c + dc, tStart + t, iw, ih, 1);
-                                break;
-                        }
-                    }
-                }
+            // Set the volume from arrays, whole Z slabs at a time and several at once
+            int[] channels = new int[ic];
+            for (int c = 0; c < ic; c++) channels[c] = dc + c;
+            int[] timepoints = new int[it];
+            for (int t = 0; t < it; t++) timepoints[t] = tStart + t;
+
+            if (dBitDepth == iBitDepth && converter == null) {
+                DatasetTransfer.write(dataset, dBitDepth, xStart, yStart, zStart, iw, ih, iz, channels, timepoints,
+                        Utils.planeSupplier(imp, 0));
+            } else {
+                DatasetTransfer.write(dataset, dBitDepth, xStart, yStart, zStart, iw, ih, iz, channels, timepoints,
+                        Utils.planeSupplier(imp, 0), converter);
             }
+
+            // Colors and ranges of all new channels in one go, once the data is there
+            setChannelDisplay(dataset, imp, dc, converter == null || converter.getPolicy() == PixelConverter.Policy.CLAMP);
         }
 
         /**
@@ -1262,34 +1319,155 @@ public class EasyXT {
                 log.severe("Provided image is not binary");
                 throw new Error("Image Type Error", "Image " + imp.getTitle() + " is not binary", "");
             }
-            // Divide by 255
-            // Duplicate so as not to change it
-            ImagePlus tempImage = imp.duplicate();
-            // Imaris surface accept ONLY 0-1 image
-            int nProcessor = tempImage.getStack().getSize();
-            IntStream.range(0, nProcessor).parallel().forEach(index -> {
-                tempImage.getStack().getProcessor(index + 1).multiply(1.0 / 255.0);
-            });
+            int width = imp.getWidth();
+            int height = imp.getHeight();
+            int nSlices = imp.getNSlices();
+
+            // A single-timepoint mask dataset, reused for every timepoint, as AddSurface copies what it needs
+            IDataSetPrx mask = Utils.getImarisApp().GetFactory().CreateDataSet();
+            mask.Create(tType.eTypeUInt8, width, height, nSlices, 1, 1);
+            Calibration cal = imp.getCalibration();
+            mask.SetExtendMinX((float) (cal.xOrigin * cal.pixelWidth));
+            mask.SetExtendMinY((float) (cal.yOrigin * cal.pixelHeight));
+            mask.SetExtendMinZ((float) (cal.zOrigin * cal.pixelDepth));
+            mask.SetExtendMaxX((float) ((cal.xOrigin + width) * cal.pixelWidth));
+            mask.SetExtendMaxY((float) ((cal.yOrigin + height) * cal.pixelHeight));
+            mask.SetExtendMaxZ((float) ((cal.zOrigin + nSlices) * cal.pixelDepth));
 
             // build empty surface object
             ISurfacesPrx surface = Utils.getImarisApp().GetFactory().CreateSurfaces();
 
             // Go through the timepoints and generate a surface for each timepoint
-            for (int t = 0; t < tempImage.getNFrames(); t++) {
-                // Temporary ImagePlus required to work!
-                ImagePlus tImp = new Duplicator().run(tempImage, 1, 1, 1, imp.getNSlices(), t + 1, t + 1);
-                IDataSetPrx data = Dataset.create(tImp);
-                surface.AddSurface(data, t + timepointOffset);
+            try {
+                for (int t = 0; t < imp.getNFrames(); t++) {
+                    writeBinaryTimepoint(imp, t, mask);
+                    surface.AddSurface(mask, t + timepointOffset);
+                }
+            } finally {
+                mask.Dispose();
+            }
+            EasyXT.Scene.setName(surface, imp.getTitle());
+
+            return surface;
+        }
+
+        /**
+         * Creates a new surfaces object from masks cropped around each object, such as the ones given by
+         * {@link #getSurfaceIdAsMask(ISurfacesPrx, long)}. Each mask is placed using its own calibration, and added at
+         * the timepoint stored in its "Time Index" property, or at timepoint 0
+         *
+         * @param crops binary 8-bit masks, one per object, with a single timepoint
+         * @return a surfaces object with one surface per mask
+         * @throws Error an Imaris Error if there was a problem
+         */
+        public static ISurfacesPrx createFromCrops(List<ImagePlus> crops) throws Error {
+            List<float[]> extents = new ArrayList<>(crops.size());
+            int[] timepoints = new int[crops.size()];
+            for (int i = 0; i < crops.size(); i++) {
+                ImagePlus crop = crops.get(i);
+                Calibration cal = crop.getCalibration();
+                extents.add(new float[]{
+                        (float) (cal.xOrigin * cal.pixelWidth),
+                        (float) (cal.yOrigin * cal.pixelHeight),
+                        (float) (cal.zOrigin * cal.pixelDepth),
+                        (float) ((cal.xOrigin + crop.getWidth()) * cal.pixelWidth),
+                        (float) ((cal.yOrigin + crop.getHeight()) * cal.pixelHeight),
+                        (float) ((cal.zOrigin + crop.getNSlices()) * cal.pixelDepth)});
+                Object tInd = crop.getProperty("Time Index");
+                timepoints[i] = tInd != null ? (int) tInd : 0;
             }
-            EasyXT.Scene.setName(surface, tempImage.getTitle());
+            return addCrops(crops, extents, timepoints);
+        }
 
+        /**
+         * Creates a new surfaces object from masks cropped around each object, placed in the current dataset by their
+         * offset in pixels
+         *
+         * @param crops      binary 8-bit masks, one per object, with a single timepoint
+         * @param offsets    for each mask, the x, y and z position of its first voxel in the current dataset, in pixels
+         * @param timepoints for each mask, the timepoint where to add it, 0-based
+         * @return a surfaces object with one surface per mask
+         * @throws Error an Imaris Error if there was a problem
+         */
+        public static ISurfacesPrx createFromCrops(List<ImagePlus> crops, List<int[]> offsets, int[] timepoints) throws Error {
+            ImarisCalibration cal = new ImarisCalibration(Dataset.getCurrent());
+            List<float[]> extents = new ArrayList<>(crops.size());
+            for (int i = 0; i < crops.size(); i++) {
+                ImagePlus crop = crops.get(i);
+                int[] o = offsets.get(i);
+                extents.add(new float[]{
+                        (float) ((cal.xOrigin + o[0]) * cal.pixelWidth),
+                        (float) ((cal.yOrigin + o[1]) * cal.pixelHeight),
+                        (float) ((cal.zOrigin + o[2]) * cal.pixelDepth),
+                        (float) ((cal.xOrigin + o[0] + crop.getWidth()) * cal.pixelWidth),
+                        (float) ((cal.yOrigin + o[1] + crop.getHeight()) * cal.pixelHeight),
+                        (float) ((cal.zOrigin + o[2] + crop.getNSlices()) * cal.pixelDepth)});
+            }
+            return addCrops(crops, extents, timepoints);
+        }
+
+        private static ISurfacesPrx addCrops(List<ImagePlus> crops, List<float[]> extents, int[] timepoints) throws Error {
+            if (crops.size() != extents.size() || crops.size() != timepoints.length) {
+                throw new Error("Size Mismatch", "Got " + crops.size() + " masks but " + extents.size()
+                        + " positions and " + timepoints.length + " timepoints", "");
+            }
+            ISurfacesPrx surface = Utils.getImarisApp().GetFactory().CreateSurfaces();
+            SurfaceCropUploader.upload(surface, crops, extents, timepoints);
             return surface;
         }
 
+        /**
+         * Writes one timepoint of a binary image into a single-timepoint dataset, as 0 and 1 since Imaris surfaces
+         * accept ONLY 0-1 images. Planes are converted Z slab by Z slab into reused buffers, without copying the image.
+         * Any non-zero pixel is foreground, whatever the bit depth of the image
+         */
+        static void writeBinaryTimepoint(ImagePlus imp, int t, IDataSetPrx mask) throws Error {
+            if (imp.getBitDepth() == 24) {
+                throw new Error("Image Type Error", "Image " + imp.getTitle() + " is an RGB image, not a binary mask", "");
+            }
+            int width = imp.getWidth();
+            int height = imp.getHeight();
+            int nSlices = imp.getNSlices();
+            int planeSize = width * height;
+            int blockZ = DatasetTransfer.getSlicesPerBlock(width, height, 8, nSlices);
+
+            // Slab tasks run on worker threads, and virtual stacks must be read one plane at a time
+            DatasetTransfer.PlaneSupplier planes = Utils.planeSupplier(imp, 0);
+
+            List<DatasetTransfer.Task> tasks = new ArrayList<>();
+            for (int z = 0; z < nSlices; z += blockZ) {
+                final int zi = z, d = Math.min(blockZ, nSlices - z);
+                tasks.add(() -> {
+                    byte[] block = (byte[]) PixelConverter.getBlockBuffer(8, d * planeSize);
+                    for (int k = 0; k < d; k++) {
+                        setBinary(planes.get(0, zi + k, t), block, k * planeSize, planeSize);
+                    }
+                    DatasetTransfer.writeBlock(mask, 8, block, 0, 0, zi, 0, 0, width, height, d);
+                });
+            }
+            DatasetTransfer.runAll(tasks);
+        }
+
+        /**
+         * Writes 1 for the non-zero pixels of an 8, 16 or 32-bit plane and 0 elsewhere
+         */
+        private static void setBinary(Object plane, byte[] block, int offset, int n) {
+            if (plane instanceof byte[]) {
+                byte[] p = (byte[]) plane;
+                for (int i = 0; i < n; i++) block[offset + i] = (byte) (p[i] != 0 ? 1 : 0);
+            } else if (plane instanceof short[]) {
+                short[] p = (short[]) plane;
+                for (int i = 0; i < n; i++) block[offset + i] = (byte) (p[i] != 0 ? 1 : 0);
+            } else {
+                float[] p = (float[]) plane;
+                for (int i = 0; i < n; i++) block[offset + i] = (byte) (p[i] != 0 ? 1 : 0);
+            }
+        }
+
         /**
          * Create a new surfaces object from this ImagePlus
          *
-         * @param impLabel the label image to get a surface from. can be 8 or 16 bit
+         * @param impLabel the label image to get a surface from. can be 8, 16 or 32 bit
          * @return a surfaces object that should render in Imaris (though pixellated)
          * @throws Error an Imaris Error if there was a problem
          */
@@ -1324,45 +1502,9 @@ public class EasyXT {
                 }
             }
 
-            // Go through T and Z, produce 1D array of pixels to add to label image
-            for (int z = 0; z < slices; z++) {
-                for (int t = 0; t < timepoints; t++) {
-                    int idx = impLabel.getStackIndex(1, z + 1, t + 1);
-                    ImageProcessor ip = impLabel.getStack().getProcessor(idx);
-
-                    int[] pixelsInt = new int[ip.getPixelCount()];
-
-                    switch (ip.getBitDepth()) {
-                        case 8:
-                            byte[] pixels8 = (byte[]) ip.getPixels();
-                            for (int i = 0; i < pixels8.length; i++) {
-                                pixelsInt[i] = pixels8[i];
-                            }
-                            break;
-                        case 16:
-                            short[] pixels16 = (short[]) ip.getPixels();
-                            for (int i = 0; i < pixels16.length; i++) {
-                                pixelsInt[i] = pixels16[i];
-                            }
-                            break;
-                        case 32:
-                            float[] pixels32 = (float[]) ip.getPixels();
-                            for (int i = 0; i < pixels32.length; i++) {
-                                pixelsInt[i] = Math.round(pixels32[i]);
-                            }
-                            break;
-
-                        default:
-                            log.severe("Unsupported pixel type for label image");
-                            throw new Error("Unsupported Pixel Type", "Unsupported pixel type for label image", "");
-                    }
-                    short[] pixels = (short[]) ip.getPixels();
-                    for (int i = 0; i < pixels.length; i++) {
-                        pixelsInt[i] = pixels[i];
-                    }
-                    labelImage.SetDataSubVolumeAs1DArrayInts(pixelsInt, 0, 0, z, t, width, height, 1);
-                }
-            }
+            // Whole Z slabs per call, converted in parallel
+            LabelImageUploader.upload(impLabel, labelImage);
+
             log.info("InterNal label image created, detecting surfaces");
             ISurfacesPrx surface = EasyXT.Utils.getImarisApp().GetImageProcessing().DetectSurfacesFromLabelImage(labelImage);
             return surface;
@@ -1405,6 +1547,31 @@ public class EasyXT {
             return Scene.findSurfaces(name);
         }
 
+        /**
+         * Streams a crop of the mask and of all channels of the current dataset around each surface, read in parallel
+         * in the background. Close the stream when done
+         *
+         * @param surface a surface object see {@link Scene#findSurfaces(String)}
+         * @param padding how many pixels to add around each surface
+         * @return the stream of crops
+         * @throws Error an Imaris Error
+         */
+        public static ObjectCropStream streamCrops(ISurfacesPrx surface, int padding) throws Error {
+            return ObjectCropStream.of(surface, padding);
+        }
+
+        /**
+         * Get surfaces as runs of voxels, which are much lighter than a label image when surfaces are small,
+         * see {@link SparseSurfaces#rasterize()} to get the label image from them
+         *
+         * @param surface a surface object see {@link Scene#findSurfaces(String)}
+         * @return the sparse surfaces
+         * @throws Error an Imaris Error
+         */
+        public static SparseSurfaces getSparse(ISurfacesPrx surface) throws Error {
+            return SparseSurfaces.of(surface);
+        }
+
         /**
          * Get surface mask instead of labels
          *
@@ -1433,32 +1600,42 @@ public class EasyXT {
          * @throws Error an Imaris Error
          */
         public static ImagePlus getLabelsImage(ISurfacesPrx surface) throws Error {
+            return getLabelsImage(surface, SurfaceLabelExporter.Mode.EXACT);
+        }
+
+        /**
+         * Get surfaces as labels, choosing how the masks are fetched. {@link SurfaceLabelExporter.Mode#COMPONENTS} is
+         * much faster with many surfaces, but only correct if they do not touch each other,
+         * {@link SurfaceLabelExporter.Mode#AUTO} uses it only where it can check the result
+         *
+         * @param surface a surface object see {@link Scene#findSurfaces(String)}
+         * @param mode    exact masks, connected components of the whole mask, or automatic
+         * @return a Labeled image (ImagePlus)
+         * @throws Error an Imaris Error
+         */
+        public static ImagePlus getLabelsImage(ISurfacesPrx surface, SurfaceLabelExporter.Mode mode) throws Error {
             // Try to be efficient getting the surfaces by using the extents of the individual masks and adding
             // them to a dataset rather than recreate the surface object
 
             // Getting a single surface mask for a timepoint
-            int nSurfaces = surface.GetNumberOfSurfaces();
-            int maxSurfaceID = (int) Arrays.stream(surface.GetIds()).max().getAsLong();
+            // All ids, time indices and layouts are fetched once, in parallel
+            SurfacesSnapshot snapshot = new SurfacesSnapshot(surface).prefetch();
+            int nSurfaces = snapshot.size();
+            long maxSurfaceID = snapshot.getMaxId();
 
             ImarisCalibration cal = new ImarisCalibration(Dataset.getCurrent());
 
             // Force to only have one channel
             cal.cSize = 1;
-            ImagePlus labelImage = IJ.createHyperStack(Scene.getName(surface) + "-Labels", cal.xSize, cal.ySize, 1, cal.zSize, cal.tSize, 32);
+            // The smallest type that holds all labels, painted directly without a 32-bit intermediate
+            int bitDepth = SurfaceLabelExporter.getLabelBitDepth(maxSurfaceID);
+            ImagePlus labelImage = IJ.createHyperStack(Scene.getName(surface) + "-Labels", cal.xSize, cal.ySize, 1, cal.zSize, cal.tSize, bitDepth);
             labelImage.setCalibration(cal);
 
-            for (int i = 0; i < nSurfaces; i++) {
-                addSurfaceIndexToLabelImage(surface, i, labelImage);
-            }
-
-            // the labelImage is 32 bit (because this makes it easier to use internally,
-            // we can convert it here to the right bit depth to save memory
-            boolean doScaling = ImageConverter.getDoScaling();
-            ImageConverter.setDoScaling(false);
-
-            if (maxSurfaceID < 256) new ImageConverter(labelImage).convertToGray8();
-            if (maxSurfaceID < 65536) new ImageConverter(labelImage).convertToGray16();
-            ImageConverter.setDoScaling(doScaling);
+            // Several masks in flight, each worker painting its own timepoints and slices
+            log.info("Exporting " + nSurfaces + " surfaces as labels");
+            new SurfaceLabelExporter(snapshot, labelImage, mode).paint();
+            labelImage.setDisplayRange(0, maxSurfaceID + 1);
 
             return labelImage;
         }
@@ -1473,11 +1650,39 @@ public class EasyXT {
          * @throws Error an Imaris Error
          */
         public static ImagePlus getSurfaceIdAsMask(ISurfacesPrx surface, long id) throws Error {
+            return getSurfaceIdAsMask(new SurfacesSnapshot(surface), id);
+        }
 
-            List<Long> ids = Arrays.stream(surface.GetIds()).boxed().collect(Collectors.toList());
-            int idx = ids.indexOf(new Long(id));
+        /**
+         * Extracts several surfaces at once as ImageJ binary images, see {@link #getSurfaceIdAsMask(ISurfacesPrx, long)}.
+         * Ids are resolved once and the masks are requested in parallel. To access the same surfaces several times
+         * without going back to Imaris, keep a {@link SurfaceMaskCache} instead
+         *
+         * @param surface the surfaces we wish to extract the surfaces from
+         * @param ids     the ids of the surfaces to extract
+         * @return an ImagePlus mask per id, in the same order. Repeated ids give the same ImagePlus
+         * @throws Error an Imaris Error, also if there is no surface with one of the ids
+         */
+        public static ImagePlus[] getSurfaceIdsAsMasks(ISurfacesPrx surface, long[] ids) throws Error {
+            // Nothing else holds the masks, no need for copies
+            return new SurfaceMaskCache(new SurfacesSnapshot(surface), Long.MAX_VALUE).get(ids, false);
+        }
+
+        /**
+         * Same as {@link #getSurfaceIdAsMask(ISurfacesPrx, long)}, reusing the metadata of a snapshot of the surfaces.
+         * Use this when extracting several surfaces, so that ids are not fetched again for each of them
+         *
+         * @param snapshot the metadata of the surfaces we wish to extract a single surface from
+         * @param id       the id of the surface to extract
+         * @return an ImagePlus mask
+         * @throws Error an Imaris Error, also if there is no surface with this id
+         */
+        public static ImagePlus getSurfaceIdAsMask(SurfacesSnapshot snapshot, long id) throws Error {
+            ISurfacesPrx surface = snapshot.getSurface();
+            int idx = snapshot.getIndex(id);
+            if (idx < 0) throw new Error("Surface not found", "There is no surface with ID " + id, Scene.getName(surface));
 
-            cSurfaceLayout layout = surface.GetSurfaceDataLayout(idx);
+            cSurfaceLayout layout = snapshot.getLayout(idx);
 
             // A lot of operations we want to do might enlarge the surface, so we give it a bit more room than the extents proposed by Imaris
             layout = Surfaces.padLayout(layout, 5, 5, 5);
@@ -1497,7 +1702,7 @@ public class EasyXT {
             });
 
             // Record the timepoint into the Image Properties
-            surfaceImp.setProperty("Time Index", surface.GetTimeIndex(idx));
+            surfaceImp.setProperty("Time Index", snapshot.getTimeIndex(idx));
             return surfaceImp;
         }
 
@@ -1533,63 +1738,6 @@ public class EasyXT {
 
         }
 
-        /**
-         * This internal method appends a single surface defined by the
-         * index (0-based, not the ID) into the provided ImagePlus. The ImagePlus is modified in place
-         *
-         * @param surface the surfaces to query
-         * @param index   the index of the surface to add to the image
-         * @param image   the image that will hold the labeled surfaces
-         * @throws Error an Imaris Error
-         */
-        private static void addSurfaceIndexToLabelImage(ISurfacesPrx surface, int index, ImagePlus image) throws Error {
-            // get the extents to find where to put the data
-            Calibration fCal = image.getCalibration();
-
-            // There is no guarantee that the surface will have the same calibration, so we need to coerce it to a multiple of the calibration of the ImagePlus
-            // This means checking that the origin is a multiple of the ImagePlus Origin plus x times the pixel size
-            cSurfaceLayout layout = adjustBounds(surface.GetSurfaceDataLayout(index), fCal);
-
-            // GetTimepoint
-            int t = surface.GetTimeIndex(index);
-            long id = surface.GetIds()[index];
-            IDataSetPrx currentSurfaceDataset = surface.GetSingleMask(index,
-                    layout.mExtendMinX, layout.mExtendMinY, layout.mExtendMinZ,
-                    layout.mExtendMaxX, layout.mExtendMaxY, layout.mExtendMaxZ,
-                    layout.mSizeX, layout.mSizeY, layout.mSizeZ);
-
-            // We can convert this to an ImagePlus and add it in place to the provided ImagePlus
-            ImagePlus temp = Dataset.getImagePlus(currentSurfaceDataset);
-            Calibration tCal = temp.getCalibration();
-
-            // Find where the temp image starts
-            int startX = (int) Math.round((tCal.xOrigin - fCal.xOrigin));
-            int startY = (int) Math.round((tCal.yOrigin - fCal.yOrigin));
-            int startZ = (int) Math.round((tCal.zOrigin - fCal.zOrigin));
-
-            // Make sure the startZ is correct
-            if (startZ < 0) startZ = 0;
-            if ((startZ + temp.getNSlices()) > image.getNSlices()) {
-                // Remove Slices startZ = 0;
-            }
-
-            // Add the data, along with the desired index
-            for (int z = 1; z <= temp.getNSlices(); z++) {
-                int position = image.getStackIndex(1, z + startZ, t + 1);
-                ImageProcessor fip = image.getStack().getProcessor(position);
-                ImageProcessor pip = temp.getStack().getProcessor(z).convertToFloat();
-
-                // The mask is within 0-1 so we just need to multiply by the ID
-                // NOTE: We increment the ID by 1 because the surface ID can start at 0
-                pip.multiply(id + 1);
-
-                // Fast copy interface using Blitter
-                fip.copyBits(pip, startX, startY, Blitter.COPY_ZERO_TRANSPARENT);
-
-                image.getStack().setProcessor(fip, position);
-            }
-        }
-
         // TODO add method to recover timepoint from an ImagePlus
 
         /**
@@ -1601,7 +1749,7 @@ public class EasyXT {
          * @param referenceCalibration the reference image calibration to use to redefine those bounds
          * @return a new surface layout with the right pixel size that can be reused when exporting a mask
          */
-        private static cSurfaceLayout adjustBounds(cSurfaceLayout originalLayout, Calibration referenceCalibration) {
+        static cSurfaceLayout adjustBounds(cSurfaceLayout originalLayout, Calibration referenceCalibration) {
 
             // Prepare the new layout
             cSurfaceLayout newLayout = originalLayout.clone();
@@ -1952,22 +2100,28 @@ public class EasyXT {
 
             int previousT = spotsT[0];
             ArrayList<ImagePlus> imps = new ArrayList<ImagePlus>(spotsT[spotsT.length - 1]);
-            for (int t = 0; t < spotsT.length; t++) {
-                // if the current spot is from a different time-point
-                if ((cal.tSize > 1) && ((spotsT[t] != previousT) || (t == spotsT.length - 1))) {
-                    // store the current status into an ImagePlus
-                    // N.B. duplicate is required to store the current time-point
-                    imps.add(new ImagePlus("t" + previousT, objCreator.getStack().duplicate()));
-                    // and reset the obj_creator
-                    objCreator.reset();
+            TransferMonitor monitor = TransferMonitor.get();
+            TransferMonitor.Operation operation = monitor.begin("Creating Labelled Spots", spotsT.length);
+            try {
+                for (int t = 0; t < spotsT.length; t++) {
+                    // if the current spot is from a different time-point
+                    if ((cal.tSize > 1) && ((spotsT[t] != previousT) || (t == spotsT.length - 1))) {
+                        // store the current status into an ImagePlus
+                        // N.B. duplicate is required to store the current time-point
+                        imps.add(new ImagePlus("t" + previousT, objCreator.getStack().duplicate()));
+                        // and reset the obj_creator
+                        objCreator.reset();
+                    }
+                    // but if is_value_id is true, use the ID number for the value
+                    if (isValueId) val = (int) spots_ids[t];
+                    // add an ellipsoid to obj_creator
+                    objCreator.createEllipsoidAxesUnit(spotsCenterXYZ[t][0] - cal.xStart, spotsCenterXYZ[t][1] - cal.yStart, spotsCenterXYZ[t][2] - cal.zStart, spotsRadiiXYZ[t][0], spotsRadiiXYZ[t][1], spotsRadiiXYZ[t][2], (float) val, vector3D1, vector3D2, isGauss);
+                    // set the previous_t
+                    previousT = spotsT[t];
+                    monitor.step(operation);
                 }
-                // but if is_value_id is true, use the ID number for the value
-                if (isValueId) val = (int) spots_ids[t];
-                // add an ellipsoid to obj_creator
-                objCreator.createEllipsoidAxesUnit(spotsCenterXYZ[t][0] - cal.xStart, spotsCenterXYZ[t][1] - cal.yStart, spotsCenterXYZ[t][2] - cal.zStart, spotsRadiiXYZ[t][0], spotsRadiiXYZ[t][1], spotsRadiiXYZ[t][2], (float) val, vector3D1, vector3D2, isGauss);
-                // set the previous_t
-                previousT = spotsT[t];
-                if (t % 10 == 0) log.info("Creating Labelled Spots " + (t + 1) + "/" + spotsT.length);
+            } finally {
+                monitor.end(operation);
             }
 
             if (cal.tSize > 1) {
@@ -1988,6 +2142,19 @@ public class EasyXT {
             return finalImp;
         }
 
+        /**
+         * Streams a crop of all channels of the current dataset around each spot, with the ellipsoid of the spot as
+         * mask, read in parallel in the background. Close the stream when done
+         *
+         * @param spots   a spots object see {@link  Scene#findSpots(String)}
+         * @param padding how many pixels to add around each spot
+         * @return the stream of crops
+         * @throws Error an Imaris Error
+         */
+        public static ObjectCropStream streamCrops(ISpotsPrx spots, int padding) throws Error {
+            return ObjectCropStream.of(spots, padding);
+        }
+
         /**
          * Get an ImagePlus of the spots as a label (object has Imaris-ID value)
          *
@@ -2167,17 +2334,24 @@ public class EasyXT {
         /**
          * Closes an existing Imaris ICE connection before reattempting to connect.
          * This is useful when Imaris has crashed but fiji is still running.
+         * The last settings given to {@link #connectToImaris(TransportSettings)} are reused, if any
          */
         public static void connectToImaris() {
 
             closeImarisConnection();
 
-            log.info("Starting ImarisLib");
-            vImarisLib = new BPImarisLib();
+            ImarisServer.IServerPrx vServer;
+            if (transportSettings == null) {
+                log.info("Starting ImarisLib");
+                vImarisLib = new BPImarisLib();
 
-            log.info("Getting Imaris Server");
+                log.info("Getting Imaris Server");
+                vServer = vImarisLib.GetServer();
+            } else {
+                log.info("Connecting to Imaris Server with " + transportSettings);
+                vServer = getServer(transportSettings);
+            }
 
-            ImarisServer.IServerPrx vServer = vImarisLib.GetServer();
             if (vServer == null) {
                 log.severe("Could not connect to Imaris Server. Try closing Fiji and Restart Imaris");
                 return;
@@ -2189,6 +2363,9 @@ public class EasyXT {
                 for (int i = 0; i < nObjects; i++) {
                     int id = vServer.GetObjectID(i);
                     ObjectPrx vObject = vServer.GetObject(id);
+                    if (transportSettings != null && transportSettings.isCompressed()) {
+                        vObject = vObject.ice_compress(true);
+                    }
                     APP = IApplicationPrxHelper.checkedCast(vObject);
                     if (APP != null) break;
                 }
@@ -2196,6 +2373,38 @@ public class EasyXT {
             }
         }
 
+        /**
+         * Connects to Imaris with specific ICE settings, such as the maximum message size or the client thread pool.
+         * Requests larger than the maximum message size are then split automatically, see {@link TransportSettings}
+         *
+         * @param settings the ICE settings to use for this and the following connections, or null to go back to the
+         *                 default ImarisLib connection
+         */
+        public static void connectToImaris(TransportSettings settings) {
+            transportSettings = settings;
+            DatasetTransfer.setMaxRequestBytes(settings == null ? Long.MAX_VALUE : settings.getMaxRequestBytes());
+            connectToImaris();
+        }
+
+        /**
+         * @return the ICE settings of the current connection, or null if it uses the ImarisLib defaults
+         */
+        public static TransportSettings getTransportSettings() {
+            return transportSettings;
+        }
+
+        private static ImarisServer.IServerPrx getServer(TransportSettings settings) {
+            try {
+                communicator = Ice.Util.initialize(settings.getInitializationData());
+                ObjectPrx proxy = communicator.stringToProxy(settings.getEndpoint());
+                if (settings.isCompressed()) proxy = proxy.ice_compress(true);
+                return ImarisServer.IServerPrxHelper.checkedCast(proxy);
+            } catch (Ice.LocalException e) {
+                log.severe("Could not reach Imaris Server at " + settings.getEndpoint() + ": " + e);
+                return null;
+            }
+        }
+
         /**
          * Backwards compatibility with EasyXT 0.2.x
          * @deprecated
@@ -2280,11 +2489,12 @@ public class EasyXT {
                 spots_filtered = copySpots(spots_tofilter, filteredIds);
                 aItemFiltered = spots_filtered;
             } else if (factory.IsSurfaces(aItem)) {
-                // CopySurfaces requires a int[] so need to convert the List
-                int[] filteredIds = filteredIdsList.stream().mapToInt(i -> i).toArray();
+                // CopySurfaces requires the int[] indices of the surfaces, not their ids
                 ISurfacesPrx surfacesToFilter = (ISurfacesPrx) EasyXT.Utils.convertToSubType(aItem);
+                SurfacesSnapshot snapshot = new SurfacesSnapshot(surfacesToFilter);
+                int[] filteredIndices = filteredIdsList.stream().mapToInt(snapshot::getIndex).filter(i -> i >= 0).toArray();
                 ISurfacesPrx surfacesFiltered;
-                surfacesFiltered = surfacesToFilter.CopySurfaces(filteredIds);
+                surfacesFiltered = surfacesToFilter.CopySurfaces(filteredIndices);
                 aItemFiltered = surfacesFiltered;
             }
 
@@ -2401,6 +2611,26 @@ public class EasyXT {
             return filteredSpots;
         }
 
+        /**
+         * Gives access to the planes of an ImagePlus for {@link DatasetTransfer#write}, where the indices are relative
+         * to the requested channels, slices and timepoints. Virtual stacks are read one plane at a time
+         *
+         * @param imp     the image to read the planes from
+         * @param cOffset the first channel (0-based) of the image to use
+         * @return a supplier of the pixel arrays of the image
+         */
+        static DatasetTransfer.PlaneSupplier planeSupplier(ImagePlus imp, int cOffset) {
+            ImageStack stack = imp.getStack();
+            if (stack.isVirtual()) {
+                return (c, z, t) -> {
+                    synchronized (stack) {
+                        return stack.getPixels(imp.getStackIndex(cOffset + c + 1, z + 1, t + 1));
+                    }
+                };
+            }
+            return (c, z, t) -> stack.getPixels(imp.getStackIndex(cOffset + c + 1, z + 1, t + 1));
+        }
+
         /**
          * returns the Imaris enum value corresponding to the requested bit depth
          * Mostly useful internally when creating dataets
@@ -2408,7 +2638,7 @@ public class EasyXT {
          * @param bitDepth the bitdepth (8,16 or 32)
          * @return the corresponding Imaris bit depth type
          */
-        private static tType getImarisDatasetType(int bitDepth) {
+        static tType getImarisDatasetType(int bitDepth) {
             switch (bitDepth) {
                 case 8:
                     return tType.eTypeUInt8;
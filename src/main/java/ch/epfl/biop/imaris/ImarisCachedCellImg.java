@@ -0,0 +1,337 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.CacheRemover;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.ref.SoftRefLoaderRemoverCache;
+import net.imglib2.img.basictypeaccess.Dirty;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.DirtyByteArray;
+import net.imglib2.img.basictypeaccess.array.DirtyFloatArray;
+import net.imglib2.img.basictypeaccess.array.DirtyShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * An ImgLib2 view of an Imaris dataset, as a 5D (XYZCT) {@link CachedCellImg}.
+ * Cells are 3D blocks of a single channel and timepoint, loaded lazily from Imaris with one
+ * GetDataSubVolume call each, and evicted from memory when it runs low.
+ * This allows ImgLib2 and imagej-ops workflows to run block-wise on datasets that would not fit in memory as an ImagePlus.
+ * <p>
+ * When created with write-back enabled, cells keep track of modifications, and modified cells are written to Imaris
+ * when they are evicted, before their memory is released, so that no modification is lost under memory pressure.
+ * {@link #writeBack()} sends the modified cells that are still in memory, call it when done modifying the image.
+ *
+ * @param <T> UnsignedByteType, UnsignedShortType or FloatType, depending on the bit depth of the dataset
+ */
+public class ImarisCachedCellImg<T extends NativeType<T>> {
+
+    private static final Logger log = Logger.getLogger(ImarisCachedCellImg.class.getName());
+
+    private final IDataSetPrx dataset;
+    private final int bitDepth;
+    private final CachedCellImg<T, ?> img;
+
+    private ImarisCachedCellImg(IDataSetPrx dataset, int bitDepth, CachedCellImg<T, ?> img) {
+        this.dataset = dataset;
+        this.bitDepth = bitDepth;
+        this.img = img;
+    }
+
+    /**
+     * Wraps an Imaris dataset with cells of 64x64x64 pixels, without write-back
+     *
+     * @param dataset the dataset to wrap
+     * @param <T>     the ImgLib2 type matching the bit depth of the dataset
+     * @return a lazily loaded view of the dataset
+     * @throws Error an Imaris Error
+     */
+    public static <T extends NativeType<T>> ImarisCachedCellImg<T> wrap(IDataSetPrx dataset) throws Error {
+        return wrap(dataset, new int[]{64, 64, 64}, false);
+    }
+
+    /**
+     * Wraps an Imaris dataset
+     *
+     * @param dataset   the dataset to wrap
+     * @param cellSize  the size of the cells in X, Y and Z, in pixels
+     * @param writeBack true to track modifications, which are written to Imaris when cells are evicted and by
+     *                  {@link #writeBack()}
+     * @param <T>       the ImgLib2 type matching the bit depth of the dataset
+     * @return a lazily loaded view of the dataset
+     * @throws Error an Imaris Error
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends NativeType<T>> ImarisCachedCellImg<T> wrap(IDataSetPrx dataset, int[] cellSize, boolean writeBack) throws Error {
+        ImarisCalibration cal = new ImarisCalibration(dataset);
+        int bitDepth = EasyXT.Dataset.getBitDepth(dataset);
+
+        long[] dimensions = new long[]{cal.xSize, cal.ySize, cal.zSize, cal.cSize, cal.tSize};
+        int[] cellDimensions = new int[]{
+                Math.min(cellSize[0], cal.xSize),
+                Math.min(cellSize[1], cal.ySize),
+                Math.min(cellSize[2], cal.zSize),
+                1, 1};
+
+        T type;
+        switch (bitDepth) {
+            case 8:
+                type = (T) new UnsignedByteType();
+                break;
+            case 16:
+                type = (T) new UnsignedShortType();
+                break;
+            case 32:
+                type = (T) new FloatType();
+                break;
+            default:
+                throw new Error("Unsupported Pixel Type", "Unsupported bit depth: " + bitDepth, "");
+        }
+
+        CachedCellImg<T, ?> img;
+        if (writeBack) {
+            img = createWritable(dataset, bitDepth, new CellGrid(dimensions, cellDimensions), type);
+        } else {
+            ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options().cellDimensions(cellDimensions);
+            img = new ReadOnlyCachedCellImgFactory(options).create(dimensions, type, new ImarisCellLoader<>(dataset, bitDepth));
+        }
+
+        return new ImarisCachedCellImg<>(dataset, bitDepth, img);
+    }
+
+    /**
+     * Builds a cached image whose cells are written to Imaris when evicted, if they were modified
+     */
+    private static <T extends NativeType<T>, A extends ArrayDataAccess<A>> CachedCellImg<T, A> createWritable(
+            IDataSetPrx dataset, int bitDepth, CellGrid grid, T type) {
+        WriteBackCells<A> cells = new WriteBackCells<>(dataset, bitDepth, grid);
+        Cache<Long, Cell<A>> cache = new SoftRefLoaderRemoverCache<Long, Cell<A>, A>()
+                .withRemover(cells)
+                .withLoader(cells);
+        return new CachedCellImg<>(grid, type, cache, cells.wrap(PixelConverter.newArray(bitDepth, 1)));
+    }
+
+    /**
+     * @return the ImgLib2 image, with dimensions X, Y, Z, C, T
+     */
+    public CachedCellImg<T, ?> getImg() {
+        return img;
+    }
+
+    /**
+     * @return the Imaris dataset this image is reading from
+     */
+    public IDataSetPrx getDataset() {
+        return dataset;
+    }
+
+    /**
+     * Sends all modified cells that are still in memory back to Imaris. Only has an effect if the image was created
+     * with write-back enabled
+     *
+     * @return the number of cells that were written
+     * @throws Error an Imaris Error
+     */
+    public int writeBack() throws Error {
+        return writeBack(img);
+    }
+
+    private <A> int writeBack(CachedCellImg<T, A> cellImg) throws Error {
+        Cache<Long, Cell<A>> cache = cellImg.getCache();
+        long nCells = Intervals.numElements(cellImg.getCellGrid().getGridDimensions());
+
+        long[] min = new long[5];
+        int[] size = new int[5];
+        int written = 0;
+
+        for (long index = 0; index < nCells; index++) {
+            // Only look at the cells that are loaded, never load new ones
+            Cell<A> cell = cache.getIfPresent(index);
+            if (cell == null) continue;
+
+            A data = cell.getData();
+            if (!(data instanceof Dirty) || !((Dirty) data).isDirty()) continue;
+
+            cell.min(min);
+            cell.dimensions(size);
+            Object storage = ((ArrayDataAccess<?>) data).getCurrentStorageArray();
+
+            DatasetTransfer.writeBlock(dataset, bitDepth, storage,
+                    (int) min[0], (int) min[1], (int) min[2], (int) min[3], (int) min[4],
+                    size[0], size[1], size[2]);
+
+            ((Dirty) data).setDirty(false);
+            written++;
+        }
+        log.info("Wrote " + written + " modified cells back to Imaris");
+        return written;
+    }
+
+    /**
+     * Loads cells with dirty accesses, and writes the modified ones back to Imaris when the cache evicts them.
+     * Only the pixel arrays of evicted cells are kept until they are written, as the cache requires
+     */
+    private static class WriteBackCells<A extends ArrayDataAccess<A>> implements CacheLoader<Long, Cell<A>>, CacheRemover<Long, Cell<A>, A> {
+        private final IDataSetPrx dataset;
+        private final int bitDepth;
+        private final CellGrid grid;
+
+        WriteBackCells(IDataSetPrx dataset, int bitDepth, CellGrid grid) {
+            this.dataset = dataset;
+            this.bitDepth = bitDepth;
+            this.grid = grid;
+        }
+
+        @Override
+        public Cell<A> get(Long index) throws Exception {
+            long[] min = new long[5];
+            int[] size = new int[5];
+            grid.getCellDimensions(index, min, size);
+            Object block = DatasetTransfer.readBlock(dataset, bitDepth,
+                    (int) min[0], (int) min[1], (int) min[2], (int) min[3], (int) min[4], size[0], size[1], size[2]);
+            return new Cell<>(size, min, wrap(block));
+        }
+
+        @SuppressWarnings("unchecked")
+        A wrap(Object block) {
+            switch (bitDepth) {
+                case 8:
+                    return (A) new DirtyByteArray((byte[]) block);
+                case 16:
+                    return (A) new DirtyShortArray((short[]) block);
+                default:
+                    return (A) new DirtyFloatArray((float[]) block);
+            }
+        }
+
+        /**
+         * Writes a cell if it was modified
+         */
+        private void write(Long index, A data) throws Error {
+            if (!(data instanceof Dirty) || !((Dirty) data).isDirty()) return;
+            long[] min = new long[5];
+            int[] size = new int[5];
+            grid.getCellDimensions(index, min, size);
+            DatasetTransfer.writeBlock(dataset, bitDepth, data.getCurrentStorageArray(),
+                    (int) min[0], (int) min[1], (int) min[2], (int) min[3], (int) min[4], size[0], size[1], size[2]);
+            ((Dirty) data).setDirty(false);
+        }
+
+        @Override
+        public void onRemoval(Long index, A data) {
+            try {
+                write(index, data);
+            } catch (Error error) {
+                // Nothing to throw to from here, the cache is evicting on behalf of another access
+                log.severe("Could not write modified cell " + index + " back to Imaris, its modifications are lost: " + error.mDescription);
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> persist(Long index, A data) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            try {
+                write(index, data);
+                result.complete(null);
+            } catch (Error error) {
+                result.completeExceptionally(error);
+            }
+            return result;
+        }
+
+        @Override
+        public Cell<A> reconstruct(Long index, A data) {
+            long[] min = new long[5];
+            int[] size = new int[5];
+            grid.getCellDimensions(index, min, size);
+            return new Cell<>(size, min, data);
+        }
+
+        @Override
+        public A extract(Cell<A> cell) {
+            return cell.getData();
+        }
+
+        // Imaris is the backing store, there is nothing else to invalidate
+
+        @Override
+        public void invalidate(Long index) {
+        }
+
+        @Override
+        public void invalidateIf(long parallelismThreshold, Predicate<Long> condition) {
+        }
+
+        @Override
+        public void invalidateAll(long parallelismThreshold) {
+        }
+    }
+
+    /**
+     * Loads one cell, a block of a single channel and timepoint, with a single call to Imaris
+     */
+    private static class ImarisCellLoader<T extends NativeType<T>> implements CellLoader<T> {
+        private final IDataSetPrx dataset;
+        private final int bitDepth;
+
+        ImarisCellLoader(IDataSetPrx dataset, int bitDepth) {
+            this.dataset = dataset;
+            this.bitDepth = bitDepth;
+        }
+
+        @Override
+        public void load(SingleCellArrayImg<T, ?> cell) throws Exception {
+            int x = (int) cell.min(0);
+            int y = (int) cell.min(1);
+            int z = (int) cell.min(2);
+            int c = (int) cell.min(3);
+            int t = (int) cell.min(4);
+            int w = (int) cell.dimension(0);
+            int h = (int) cell.dimension(1);
+            int d = (int) cell.dimension(2);
+
+            // Both Imaris and the cell are flat arrays in XYZ order
+            Object block = DatasetTransfer.readBlock(dataset, bitDepth, x, y, z, c, t, w, h, d);
+            Object storage = ((ArrayDataAccess<?>) cell.update(null)).getCurrentStorageArray();
+            System.arraycopy(block, 0, storage, 0, w * h * d);
+        }
+    }
+}
@@ -115,6 +115,117 @@ public class ImarisCalibration extends Calibration {
 
     }
 
+    /**
+     * Copies the calibration of the source, but with new extents. Sizes and origins are recomputed
+     * from the extents and the pixel size of the source
+     */
+    private ImarisCalibration( ImarisCalibration source, double xStart, double yStart, double zStart, double xEnd, double yEnd, double zEnd ) {
+        this.xStart = xStart;
+        this.yStart = yStart;
+        this.zStart = zStart;
+
+        this.xEnd = xEnd;
+        this.yEnd = yEnd;
+        this.zEnd = zEnd;
+
+        this.pixelWidth  = source.pixelWidth;
+        this.pixelHeight = source.pixelHeight;
+        this.pixelDepth  = source.pixelDepth;
+
+        this.xSize = (int) Math.round( ( xEnd - xStart ) / this.pixelWidth );
+        this.ySize = (int) Math.round( ( yEnd - yStart ) / this.pixelHeight );
+        this.zSize = (int) Math.round( ( zEnd - zStart ) / this.pixelDepth );
+
+        this.xOrigin = this.xStart / this.pixelWidth;
+        this.yOrigin = this.yStart / this.pixelHeight;
+        this.zOrigin = this.zStart / this.pixelDepth;
+
+        this.setUnit( source.getUnit() );
+        this.setTimeUnit( source.getTimeUnit() );
+        this.frameInterval = source.frameInterval;
+
+        this.cSize = source.cSize;
+        this.tSize = source.tSize;
+        this.cMin = source.cMin.clone();
+        this.cMax = source.cMax.clone();
+        this.cColorsRGBA = source.cColorsRGBA.clone();
+        this.cNames = source.cNames.clone();
+    }
+
+    /**
+     * Returns the calibration of a sub-part of the dataset. The extents and origins are shifted so that the
+     * subset stays at the same physical location, and the channel information only keeps the selected channels
+     * @param x the first column of the subset, in pixels
+     * @param y the first row of the subset, in pixels
+     * @param z the first slice of the subset, in pixels
+     * @param w the width of the subset, in pixels
+     * @param h the height of the subset, in pixels
+     * @param d the number of slices of the subset
+     * @param channels the 0-based channels to keep
+     * @param nTimepoints the number of timepoints in the subset
+     * @return a new calibration that matches the subset
+     */
+    public ImarisCalibration getSubset( int x, int y, int z, int w, int h, int d, int[] channels, int nTimepoints ) {
+
+        ImarisCalibration new_calibration = new ImarisCalibration( this,
+                this.xStart + x * this.pixelWidth,
+                this.yStart + y * this.pixelHeight,
+                this.zStart + z * this.pixelDepth,
+                this.xStart + ( x + w ) * this.pixelWidth,
+                this.yStart + ( y + h ) * this.pixelHeight,
+                this.zStart + ( z + d ) * this.pixelDepth );
+
+        // Avoid rounding issues, the sizes are known
+        new_calibration.xSize = w;
+        new_calibration.ySize = h;
+        new_calibration.zSize = d;
+        new_calibration.tSize = nTimepoints;
+        new_calibration.cSize = channels.length;
+
+        new_calibration.cMin = new float[channels.length];
+        new_calibration.cMax = new float[channels.length];
+        new_calibration.cColorsRGBA = new int[channels.length];
+        new_calibration.cNames = new String[channels.length];
+
+        for (int i = 0; i < channels.length; i++) {
+            new_calibration.cMin[i] = this.cMin[channels[i]];
+            new_calibration.cMax[i] = this.cMax[channels[i]];
+            new_calibration.cColorsRGBA[i] = this.cColorsRGBA[channels[i]];
+            new_calibration.cNames[i] = this.cNames[channels[i]];
+        }
+
+        return new_calibration;
+    }
+
+    /**
+     * Returns the calibration of this dataset once resampled to a new size. The extents are kept and the
+     * pixel sizes are adjusted so that the resampled data covers the same physical space
+     * @param xSize the new number of columns
+     * @param ySize the new number of rows
+     * @param zSize the new number of slices
+     * @return a new calibration that matches the resampled data
+     */
+    public ImarisCalibration getResampled( int xSize, int ySize, int zSize ) {
+
+        ImarisCalibration new_calibration = new ImarisCalibration( this, this.xStart, this.yStart, this.zStart, this.xEnd, this.yEnd, this.zEnd );
+
+        new_calibration.xSize = xSize;
+        new_calibration.ySize = ySize;
+        new_calibration.zSize = zSize;
+
+        new_calibration.pixelWidth  = (this.xEnd - this.xStart) / xSize;
+        new_calibration.pixelHeight = (this.yEnd - this.yStart) / ySize;
+        new_calibration.pixelDepth  = (this.zEnd - this.zStart) / zSize;
+
+        new_calibration.xOrigin = this.xStart / new_calibration.pixelWidth;
+        new_calibration.yOrigin = this.yStart / new_calibration.pixelHeight;
+        new_calibration.zOrigin = this.zStart / new_calibration.pixelDepth;
+
+        new_calibration.tSize = this.tSize;
+
+        return new_calibration;
+    }
+
     public ImarisCalibration getDownsampled( double downsample ) {
 
         ImarisCalibration new_calibration = (ImarisCalibration) this.clone();
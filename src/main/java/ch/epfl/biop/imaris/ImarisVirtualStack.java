@@ -0,0 +1,289 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An ImageJ VirtualStack whose planes are read on demand from an Imaris dataset.
+ * Planes are kept in a least-recently-used cache bounded in bytes, and when the user scrolls along Z or T,
+ * the next planes in that direction are read ahead in the background (in a single call when moving along Z).
+ * This allows to browse and measure datasets that are larger than the Fiji memory without transferring them.
+ * <p>
+ * Use {@link EasyXT.Dataset#getVirtualImagePlus(IDataSetPrx)} or {@link DatasetQuery#getVirtual()} to get a
+ * calibrated hyperstack that uses this stack. Changes made to the planes are not sent back to Imaris.
+ */
+public class ImarisVirtualStack extends VirtualStack {
+
+    private static final Logger log = Logger.getLogger(ImarisVirtualStack.class.getName());
+
+    // Single background thread shared by all virtual stacks, for read-ahead
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EasyXT-ReadAhead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final IDataSetPrx dataset;
+    private final int bitDepth;
+
+    // Region of the dataset that this stack shows
+    private final int x, y, zStart;
+    private final int w, h;
+    private final int nc, nz, nt;
+    private final int[] channels;
+    private final int[] timepoints;
+
+    // Access-ordered map, so that the first entry is always the least recently used
+    private final LinkedHashMap<Integer, Object> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+    private long cacheBytes = 0;
+    private long maxCacheBytes = 256L * 1024L * 1024L;
+    private int readAhead = 8;
+    private int lastIndex = -1;
+
+    /**
+     * Creates a virtual stack of the whole dataset
+     *
+     * @param dataset the dataset to read the planes from
+     * @throws Error an Imaris Error
+     */
+    public ImarisVirtualStack(IDataSetPrx dataset) throws Error {
+        this(dataset, 0, 0, 0, dataset.GetSizeX(), dataset.GetSizeY(), dataset.GetSizeZ(),
+                DatasetTransfer.range(dataset.GetSizeC()), DatasetTransfer.range(dataset.GetSizeT()));
+    }
+
+    /**
+     * Creates a virtual stack of a sub-part of the dataset, ordered XYCZT like ImageJ hyperstacks
+     *
+     * @param dataset    the dataset to read the planes from
+     * @param x          the first column, in pixels
+     * @param y          the first row, in pixels
+     * @param z          the first slice, in pixels
+     * @param w          the width of the planes
+     * @param h          the height of the planes
+     * @param d          the number of slices
+     * @param channels   the 0-based channels to show
+     * @param timepoints the 0-based timepoints to show
+     * @throws Error an Imaris Error
+     */
+    public ImarisVirtualStack(IDataSetPrx dataset, int x, int y, int z, int w, int h, int d, int[] channels, int[] timepoints) throws Error {
+        super(w, h, null, null);
+        this.dataset = dataset;
+        this.bitDepth = EasyXT.Dataset.getBitDepth(dataset);
+        this.x = x;
+        this.y = y;
+        this.zStart = z;
+        this.w = w;
+        this.h = h;
+        this.nc = channels.length;
+        this.nz = d;
+        this.nt = timepoints.length;
+        this.channels = channels;
+        this.timepoints = timepoints;
+    }
+
+    /**
+     * Sets the maximum amount of memory used to keep planes
+     *
+     * @param bytes the size of the cache, in bytes. At least one plane is always kept
+     */
+    public void setCacheSize(long bytes) {
+        synchronized (cache) {
+            this.maxCacheBytes = bytes;
+            evict();
+        }
+    }
+
+    /**
+     * Sets how many planes are read in advance in the direction the user is scrolling
+     *
+     * @param nPlanes the number of planes to read ahead, 0 to disable read-ahead
+     */
+    public void setReadAhead(int nPlanes) {
+        this.readAhead = Math.max(0, nPlanes);
+    }
+
+    @Override
+    public int getSize() {
+        return nc * nz * nt;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        int[] czt = toCZT(n);
+        return "c:" + (czt[0] + 1) + "/" + nc + " z:" + (czt[1] + 1) + "/" + nz + " t:" + (czt[2] + 1) + "/" + nt;
+    }
+
+    /**
+     * Returns the pixels of the given plane, from the cache if possible
+     *
+     * @param n the 1-based index of the plane
+     * @return the byte[], short[] or float[] pixel array. Do not modify it, as it is shared with the cache
+     */
+    @Override
+    public Object getPixels(int n) {
+        Object pixels = getCached(n);
+        if (pixels == null) {
+            int[] czt = toCZT(n);
+            try {
+                pixels = DatasetTransfer.readBlock(dataset, bitDepth, x, y, zStart + czt[1], channels[czt[0]], timepoints[czt[2]], w, h, 1);
+                putCached(n, pixels);
+            } catch (Error error) {
+                log.log(Level.SEVERE, "Could not read plane " + n + " from Imaris", error);
+                pixels = Array.newInstance(bitDepth == 8 ? byte.class : bitDepth == 16 ? short.class : float.class, w * h);
+            }
+        }
+        readAhead(n);
+        return pixels;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        // Work on a copy, so that edits in Fiji do not leak into the cache
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8:
+                return new ByteProcessor(w, h, ((byte[]) pixels).clone());
+            case 16:
+                return new ShortProcessor(w, h, ((short[]) pixels).clone(), null);
+            default:
+                return new FloatProcessor(w, h, ((float[]) pixels).clone());
+        }
+    }
+
+    /**
+     * Converts a 1-based stack index into 0-based channel, slice and frame indices of this stack
+     */
+    private int[] toCZT(int n) {
+        int i = n - 1;
+        return new int[]{i % nc, (i / nc) % nz, i / (nc * nz)};
+    }
+
+    private int toIndex(int c, int z, int t) {
+        return c + z * nc + t * nc * nz + 1;
+    }
+
+    private Object getCached(int n) {
+        synchronized (cache) {
+            return cache.get(n);
+        }
+    }
+
+    private void putCached(int n, Object pixels) {
+        synchronized (cache) {
+            Object previous = cache.put(n, pixels);
+            if (previous == null) cacheBytes += (long) w * h * (bitDepth / 8);
+            evict();
+        }
+    }
+
+    // Must be called while holding the cache lock
+    private void evict() {
+        Iterator<Map.Entry<Integer, Object>> iterator = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && cache.size() > 1 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            cacheBytes -= (long) w * h * (bitDepth / 8);
+        }
+    }
+
+    /**
+     * Finds in which direction the user is moving, and schedules the next planes in that direction
+     */
+    private void readAhead(int n) {
+        int previous = lastIndex;
+        lastIndex = n;
+        if (readAhead == 0 || previous < 1 || previous == n) return;
+
+        int[] now = toCZT(n);
+        int[] before = toCZT(previous);
+
+        if (now[0] == before[0] && now[2] == before[2] && Math.abs(now[1] - before[1]) == 1) {
+            // Scrolling along Z: read the next slices as a single slab
+            int step = now[1] - before[1];
+            int first = step > 0 ? now[1] + 1 : Math.max(0, now[1] - readAhead);
+            int last = step > 0 ? Math.min(nz - 1, now[1] + readAhead) : now[1] - 1;
+
+            // Skip what is already available at the start of the slab
+            while (first <= last && isAvailable(toIndex(now[0], step > 0 ? first : last, now[2]))) {
+                if (step > 0) first++;
+                else last--;
+            }
+            if (first > last) return;
+            scheduleSlab(now[0], first, last - first + 1, now[2]);
+
+        } else if (now[0] == before[0] && now[1] == before[1] && Math.abs(now[2] - before[2]) == 1) {
+            // Scrolling along T: one plane per timepoint
+            int step = now[2] - before[2];
+            for (int i = 1; i <= readAhead; i++) {
+                int t = now[2] + i * step;
+                if (t < 0 || t >= nt) break;
+                if (!isAvailable(toIndex(now[0], now[1], t))) scheduleSlab(now[0], now[1], 1, t);
+            }
+        }
+    }
+
+    private boolean isAvailable(int n) {
+        return pending.contains(n) || getCached(n) != null;
+    }
+
+    private void scheduleSlab(int c, int z, int d, int t) {
+        for (int i = 0; i < d; i++) pending.add(toIndex(c, z + i, t));
+
+        prefetcher.submit(() -> {
+            try {
+                Object block = DatasetTransfer.readBlock(dataset, bitDepth, x, y, zStart + z, channels[c], timepoints[t], w, h, d);
+                Object[] planes = new Object[d];
+                DatasetTransfer.splitBlock(block, w * h, planes, 0, d);
+                for (int i = 0; i < d; i++) putCached(toIndex(c, z + i, t), planes[i]);
+            } catch (Error error) {
+                log.log(Level.WARNING, "Read-ahead from Imaris failed", error);
+            } finally {
+                for (int i = 0; i < d; i++) pending.remove(toIndex(c, z + i, t));
+            }
+        });
+    }
+}
@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+/**
+ * Histogram and intensity statistics (min, max, mean, standard deviation) of the pixels of one channel and timepoint,
+ * accumulated plane by plane while they are transferred, see {@link TransferStatistics}.
+ * <p>
+ * Bins cover a fixed range: 0-255 for 8-bit data, 0-65535 for 16-bit data, and a given range for 32-bit data, in which
+ * case values outside of it are counted in the first or last bin. Min, max, mean and standard deviation are exact.
+ * Planes can be added from several threads at once.
+ */
+public class IntensityHistogram {
+
+    private final long[] bins;
+    private final double binStart;
+    private final double binWidth;
+
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum = 0;
+    private double sumOfSquares = 0;
+
+    /**
+     * @param nBins    the number of bins
+     * @param binStart the value at the start of the first bin
+     * @param binEnd   the value at the end of the last bin
+     */
+    public IntensityHistogram(int nBins, double binStart, double binEnd) {
+        this.bins = new long[nBins];
+        this.binStart = binStart;
+        this.binWidth = binEnd > binStart ? (binEnd - binStart) / nBins : 1;
+    }
+
+    /**
+     * Adds the pixels of a plane
+     *
+     * @param pixels a byte[], short[] or float[] array, integers being unsigned
+     */
+    public void add(Object pixels) {
+        // Accumulate locally, then merge once, so that threads do not wait on each other for every pixel
+        long[] local = new long[bins.length];
+        double localMin = Double.POSITIVE_INFINITY, localMax = Double.NEGATIVE_INFINITY;
+        double localSum = 0, localSumOfSquares = 0;
+        int n;
+
+        if (pixels instanceof byte[]) {
+            byte[] values = (byte[]) pixels;
+            n = values.length;
+            for (byte b : values) {
+                int v = b & 0xff;
+                local[bin(v)]++;
+                if (v < localMin) localMin = v;
+                if (v > localMax) localMax = v;
+                localSum += v;
+                localSumOfSquares += (double) v * v;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            n = values.length;
+            for (short s : values) {
+                int v = s & 0xffff;
+                local[bin(v)]++;
+                if (v < localMin) localMin = v;
+                if (v > localMax) localMax = v;
+                localSum += v;
+                localSumOfSquares += (double) v * v;
+            }
+        } else {
+            float[] values = (float[]) pixels;
+            n = values.length;
+            for (float v : values) {
+                local[bin(v)]++;
+                if (v < localMin) localMin = v;
+                if (v > localMax) localMax = v;
+                localSum += v;
+                localSumOfSquares += (double) v * v;
+            }
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < bins.length; i++) bins[i] += local[i];
+            count += n;
+            min = Math.min(min, localMin);
+            max = Math.max(max, localMax);
+            sum += localSum;
+            sumOfSquares += localSumOfSquares;
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram with the same bins, for example to combine timepoints
+     *
+     * @param other the histogram to add
+     */
+    public synchronized void add(IntensityHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < bins.length; i++) bins[i] += other.bins[i];
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+        }
+    }
+
+    private int bin(double value) {
+        int bin = (int) ((value - binStart) / binWidth);
+        if (bin < 0) return 0;
+        return Math.min(bin, bins.length - 1);
+    }
+
+    public synchronized long[] getHistogram() {
+        return bins.clone();
+    }
+
+    public double getBinStart() {
+        return binStart;
+    }
+
+    public double getBinWidth() {
+        return binWidth;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public synchronized double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public synchronized double getStdDev() {
+        if (count < 2) return 0;
+        double mean = sum / count;
+        return Math.sqrt(Math.max(0, (sumOfSquares - count * mean * mean) / (count - 1)));
+    }
+
+    /**
+     * Returns the value below which a given fraction of the pixels lie, from the histogram, so its precision is the
+     * width of a bin. Useful for auto-contrast or normalization
+     *
+     * @param fraction between 0 and 1, for example 0.99 for the 99th percentile
+     * @return the start of the bin holding the percentile
+     */
+    public synchronized double getPercentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long cumulated = 0;
+        for (int i = 0; i < bins.length; i++) {
+            cumulated += bins[i];
+            if (cumulated >= target && cumulated > 0) return binStart + i * binWidth;
+        }
+        return binStart + (bins.length - 1) * binWidth;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d, min=%.2f, max=%.2f, mean=%.2f, sd=%.2f", count, getMin(), getMax(), getMean(), getStdDev());
+    }
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.ILabelImagePrx;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the pixels of an ImageJ label image to an Imaris label image.
+ * <p>
+ * Labels are converted to ints in parallel on the transfer threads, into a buffer reused by each thread, and sent one
+ * Z slab per call, with as many slices as fit in a block (see {@link DatasetTransfer#setMaxBlockBytes(long)}). Planes
+ * larger than a request are split into tiles (see {@link DatasetTransfer#setMaxRequestBytes(long)}). 8 and 16-bit
+ * labels are read as unsigned values, 32-bit labels are rounded.
+ */
+class LabelImageUploader {
+
+    private static final ThreadLocal<int[]> buffer = ThreadLocal.withInitial(() -> new int[0]);
+
+    private LabelImageUploader() {
+    }
+
+    /**
+     * Uploads the first channel of all slices and timepoints of an image
+     *
+     * @param imp        the label image, 8, 16 or 32-bit
+     * @param labelImage the Imaris label image, already created with the same size
+     * @throws Error an Imaris Error, or if the bit depth is not supported
+     */
+    static void upload(ImagePlus imp, ILabelImagePrx labelImage) throws Error {
+        int bitDepth = imp.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new Error("Unsupported Pixel Type", "Unsupported pixel type for label image: " + bitDepth + "-bit", "");
+        }
+
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        int nz = imp.getNSlices();
+        int nt = imp.getNFrames();
+        int slabSize = DatasetTransfer.getSlicesPerBlock(width, height, 32, nz);
+        ImageStack stack = imp.getStack();
+
+        List<DatasetTransfer.Task> tasks = new ArrayList<>();
+        for (int t = 0; t < nt; t++) {
+            for (int z = 0; z < nz; z += slabSize) {
+                final int ft = t, fz = z, d = Math.min(slabSize, nz - z);
+                tasks.add(() -> {
+                    int planeSize = width * height;
+                    int[] slab = getBuffer(planeSize * d);
+                    for (int k = 0; k < d; k++) {
+                        Object plane = stack.getPixels(imp.getStackIndex(1, fz + k + 1, ft + 1));
+                        toInts(plane, slab, k * planeSize);
+                    }
+                    DatasetTransfer.writeLabelBlock(labelImage, slab, fz, ft, width, height, d);
+                });
+            }
+        }
+        DatasetTransfer.runAll(tasks);
+    }
+
+    /**
+     * Returns the buffer of the current thread, reallocated only if the size changes, as Imaris expects exact sizes
+     */
+    private static int[] getBuffer(int size) {
+        int[] ints = buffer.get();
+        if (ints.length != size) {
+            ints = new int[size];
+            buffer.set(ints);
+        }
+        return ints;
+    }
+
+    /**
+     * Converts a plane of labels to ints, reading 8 and 16-bit values as unsigned
+     */
+    static void toInts(Object plane, int[] ints, int offset) {
+        if (plane instanceof byte[]) {
+            byte[] pixels = (byte[]) plane;
+            for (int i = 0; i < pixels.length; i++) ints[offset + i] = pixels[i] & 0xFF;
+        } else if (plane instanceof short[]) {
+            short[] pixels = (short[]) plane;
+            for (int i = 0; i < pixels.length; i++) ints[offset + i] = pixels[i] & 0xFFFF;
+        } else {
+            float[] pixels = (float[]) plane;
+            for (int i = 0; i < pixels.length; i++) ints[offset + i] = Math.round(pixels[i]);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * An ImageJ VirtualStack stored in a memory-mapped temporary file, for images that do not fit in the Fiji heap.
+ * The operating system pages the planes in and out of memory as they are accessed, so that the data only has to be
+ * transferred from Imaris once, and browsing it afterwards is fast.
+ * <p>
+ * The file is mapped in segments of whole planes below 1 GB each, and is deleted when Fiji exits.
+ * Planes can be written concurrently, as long as each plane is written by a single thread.
+ */
+public class MappedImageStack extends VirtualStack {
+
+    private static final Logger log = Logger.getLogger(MappedImageStack.class.getName());
+
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final int w, h;
+    private final int size;
+    private final int bitDepth;
+    private final int planeBytes;
+    private final int planesPerSegment;
+    private final MappedByteBuffer[] segments;
+    private final File file;
+
+    /**
+     * Creates the temporary file and maps it
+     *
+     * @param w        the width of the planes
+     * @param h        the height of the planes
+     * @param size     the number of planes
+     * @param bitDepth 8, 16 or 32
+     * @throws IOException if the file cannot be created or mapped, for example if the disk is full
+     */
+    public MappedImageStack(int w, int h, int size, int bitDepth) throws IOException {
+        this(createTempFile(), w, h, size, bitDepth);
+    }
+
+    /**
+     * Maps an existing or new raw file, keeping its content if it already has the right size.
+     * The file is not deleted on exit, which allows to reuse it later, see {@link PlaneCache}
+     *
+     * @param file     the raw file, with planes stored one after the other in native byte order
+     * @param w        the width of the planes
+     * @param h        the height of the planes
+     * @param size     the number of planes
+     * @param bitDepth 8, 16 or 32
+     * @throws IOException if the file cannot be created or mapped, for example if the disk is full
+     */
+    public MappedImageStack(File file, int w, int h, int size, int bitDepth) throws IOException {
+        super(w, h, null, null);
+        this.w = w;
+        this.h = h;
+        this.size = size;
+        this.bitDepth = bitDepth;
+        this.planeBytes = w * h * (bitDepth / 8);
+        this.planesPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / planeBytes);
+        this.file = file;
+
+        log.fine("Mapping " + ((long) planeBytes * size / (1024 * 1024)) + " MB to " + file.getAbsolutePath());
+
+        int nSegments = (size + planesPerSegment - 1) / planesPerSegment;
+        segments = new MappedByteBuffer[nSegments];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            long length = (long) planeBytes * size;
+            if (raf.length() != length) raf.setLength(length);
+            for (int i = 0; i < nSegments; i++) {
+                int planes = Math.min(planesPerSegment, size - i * planesPerSegment);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * planesPerSegment * planeBytes, (long) planes * planeBytes);
+                segments[i].order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("EasyXT-", ".raw");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Unmaps the file right away instead of waiting for the garbage collector, which is needed to delete it on
+     * Windows. The stack must not be used afterwards
+     */
+    public void close() {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) unmap(segments[i]);
+            segments[i] = null;
+        }
+    }
+
+    /**
+     * Releases a mapping. There is no public API for it, so this uses the cleaner of the buffer, through
+     * sun.misc.Unsafe on Java 9 and later, and through the buffer itself on Java 8
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.fine("Could not unmap buffer, it will be released by the garbage collector: " + e);
+        }
+    }
+
+    /**
+     * @return the file backing this stack
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * @param n the 1-based index of the plane
+     * @return a new byte[], short[] or float[] array with the content of the plane
+     */
+    @Override
+    public Object getPixels(int n) {
+        ByteBuffer plane = getPlane(n);
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[w * h];
+                plane.get(pixels);
+                return pixels;
+            }
+            case 16: {
+                short[] pixels = new short[w * h];
+                plane.asShortBuffer().get(pixels);
+                return pixels;
+            }
+            default: {
+                float[] pixels = new float[w * h];
+                plane.asFloatBuffer().get(pixels);
+                return pixels;
+            }
+        }
+    }
+
+    /**
+     * Writes a plane to the file
+     *
+     * @param pixels a byte[], short[] or float[] array matching the bit depth of the stack
+     * @param n      the 1-based index of the plane
+     */
+    @Override
+    public void setPixels(Object pixels, int n) {
+        ByteBuffer plane = getPlane(n);
+        switch (bitDepth) {
+            case 8:
+                plane.put((byte[]) pixels);
+                break;
+            case 16:
+                plane.asShortBuffer().put((short[]) pixels);
+                break;
+            default:
+                plane.asFloatBuffer().put((float[]) pixels);
+                break;
+        }
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8:
+                return new ByteProcessor(w, h, (byte[]) pixels);
+            case 16:
+                return new ShortProcessor(w, h, (short[]) pixels, null);
+            default:
+                return new FloatProcessor(w, h, (float[]) pixels);
+        }
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    /**
+     * Copies a rectangle of a plane into a new array
+     *
+     * @param n the 1-based index of the plane
+     * @param x the left of the rectangle
+     * @param y the top of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @return a byte[], short[] or float[] array of w * h pixels
+     */
+    public Object getPixels(int n, int x, int y, int w, int h) {
+        if (x == 0 && y == 0 && w == this.w && h == this.h) return getPixels(n);
+
+        ByteBuffer plane = getPlane(n);
+        int bytesPerPixel = bitDepth / 8;
+        Object pixels = PixelConverter.newArray(bitDepth, w * h);
+        for (int row = 0; row < h; row++) {
+            plane.position(((y + row) * this.w + x) * bytesPerPixel);
+            switch (bitDepth) {
+                case 8:
+                    plane.get((byte[]) pixels, row * w, w);
+                    break;
+                case 16:
+                    plane.asShortBuffer().get((short[]) pixels, row * w, w);
+                    break;
+                default:
+                    plane.asFloatBuffer().get((float[]) pixels, row * w, w);
+                    break;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns an independent view on a plane, so that several threads can access different planes at once
+     */
+    private ByteBuffer getPlane(int n) {
+        int i = n - 1;
+        ByteBuffer plane = segments[i / planesPerSegment].duplicate().order(ByteOrder.nativeOrder());
+        int offset = (i % planesPerSegment) * planeBytes;
+        plane.position(offset);
+        plane.limit(offset + planeBytes);
+        return plane.slice().order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+/**
+ * Decides how a transfer from Imaris should be stored in Fiji, by comparing its size with the free heap.
+ * Data that fits is read in memory. Larger data is either mapped to a temporary file (see {@link MappedImageStack})
+ * when there is enough disk space, or opened as a virtual stack that reads planes from Imaris on demand (see
+ * {@link ImarisVirtualStack}). This avoids running out of memory in the middle of a long transfer.
+ * <p>
+ * The strategy used when the data does not fit can be forced with {@link #setFallback(Strategy)}, for example to
+ * {@link Strategy#SUBSET} so that such transfers fail right away, asking for a smaller selection.
+ */
+public class MemoryPlanner {
+
+    private static final Logger log = Logger.getLogger(MemoryPlanner.class.getName());
+
+    /**
+     * Where the transferred data is stored
+     */
+    public enum Strategy {
+        IN_MEMORY,
+        VIRTUAL,
+        MAPPED,
+        SUBSET
+    }
+
+    // Part of the free heap that a single transfer may use, the rest is left for processing
+    private static double heapFraction = 0.75;
+
+    // null means choosing between MAPPED and VIRTUAL depending on disk space
+    private static Strategy fallback = null;
+
+    /**
+     * @param fraction the part of the free heap that a single transfer may use, between 0 and 1. Defaults to 0.75
+     */
+    public static void setHeapFraction(double fraction) {
+        heapFraction = Math.max(0, Math.min(1, fraction));
+    }
+
+    public static double getHeapFraction() {
+        return heapFraction;
+    }
+
+    /**
+     * @param strategy the strategy to use when the data does not fit in the heap, or null to choose automatically
+     */
+    public static void setFallback(Strategy strategy) {
+        fallback = strategy;
+    }
+
+    public static Strategy getFallback() {
+        return fallback;
+    }
+
+    /**
+     * @return the number of bytes that can still be allocated on the heap, including what can be garbage collected
+     */
+    public static long getAvailableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Picks where to store data of a given size
+     *
+     * @param bytes the size of the data to transfer
+     * @return {@link Strategy#IN_MEMORY} if it fits in the heap, the fallback strategy otherwise
+     */
+    public static Strategy plan(long bytes) {
+        long available = getAvailableHeap();
+        if (bytes <= available * heapFraction) return Strategy.IN_MEMORY;
+
+        Strategy strategy = fallback;
+        if (strategy == null) {
+            long disk = new File(System.getProperty("java.io.tmpdir")).getUsableSpace();
+            strategy = bytes < disk * 0.9 ? Strategy.MAPPED : Strategy.VIRTUAL;
+        }
+        log.warning("Transfer of " + (bytes >> 20) + " MB does not fit in the " + (available >> 20) + " MB of free memory, using " + strategy);
+        return strategy;
+    }
+}
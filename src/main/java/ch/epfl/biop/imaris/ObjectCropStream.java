@@ -0,0 +1,450 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import Imaris.ISpotsPrx;
+import Imaris.ISurfacesPrx;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams one crop per object of a Surfaces or Spots object: the mask of the object and all channels of the current
+ * dataset around its bounding box, enlarged by some padding, for example to build training patches.
+ * <p>
+ * Ids, time indices and bounds are fetched once for all objects. Crops are then read in the background, several
+ * objects at a time on the transfer threads, and only a bounded number of crops wait to be consumed, so the stream
+ * gives backpressure to the reader. Each crop only transfers the voxels of its bounding box.
+ * <pre>
+ * try (ObjectCropStream crops = EasyXT.Surfaces.streamCrops(surface, 8)) {
+ *     for (ObjectCropStream.Crop crop : crops) {
+ *         // use crop.getImage() and crop.getMask()
+ *     }
+ * }
+ * </pre>
+ * Crops can also be consumed as a {@link Stream} with {@link #stream()}, or saved to disk with
+ * {@link #writeTo(File, int)}.
+ */
+public class ObjectCropStream implements Iterable<ObjectCropStream.Crop>, Iterator<ObjectCropStream.Crop>, AutoCloseable {
+
+    private final Source source;
+    private final IDataSetPrx dataset;
+    private final ImarisCalibration cal;
+    private final int padding;
+    private final Prefetcher<Crop> crops;
+
+    private ObjectCropStream(Source source, int padding) throws Error {
+        this.source = source;
+        this.dataset = EasyXT.Dataset.getCurrent();
+        this.cal = new ImarisCalibration(dataset);
+        this.padding = padding;
+        this.crops = new Prefetcher<>("EasyXT-CropReader", 2 * DatasetTransfer.getThreads(), this::readCrops);
+    }
+
+    /**
+     * Starts streaming the crops of all surfaces
+     *
+     * @param surface the surfaces to crop
+     * @param padding how many pixels to add around the bounding box of each surface, in X, Y and Z
+     * @return the stream of crops, in the order of the surface indices
+     * @throws Error an Imaris Error
+     */
+    public static ObjectCropStream of(ISurfacesPrx surface, int padding) throws Error {
+        return new ObjectCropStream(new SurfacesSource(new SurfacesSnapshot(surface).prefetch()), padding);
+    }
+
+    /**
+     * Starts streaming the crops of all spots, whose masks are the ellipsoids given by their radii
+     *
+     * @param spots   the spots to crop
+     * @param padding how many pixels to add around the bounding box of each spot, in X, Y and Z
+     * @return the stream of crops, in the order of the spot indices
+     * @throws Error an Imaris Error
+     */
+    public static ObjectCropStream of(ISpotsPrx spots, int padding) throws Error {
+        return new ObjectCropStream(new SpotsSource(spots), padding);
+    }
+
+    /**
+     * @return the number of crops this stream gives
+     */
+    public int size() {
+        return source.size();
+    }
+
+    private void readCrops(Prefetcher<Crop> sink) throws Error, InterruptedException {
+        int batchSize = DatasetTransfer.getThreads();
+        for (int start = 0; start < source.size() && !sink.isClosed(); start += batchSize) {
+            int end = Math.min(source.size(), start + batchSize);
+            Crop[] batch = new Crop[end - start];
+            List<DatasetTransfer.Task> tasks = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                final int index = i, first = start;
+                tasks.add(() -> batch[index - first] = readCrop(index));
+            }
+            DatasetTransfer.runAll(tasks);
+            for (Crop crop : batch) sink.put(crop);
+        }
+    }
+
+    /**
+     * Reads the mask and the image around one object
+     */
+    private Crop readCrop(int index) throws Error {
+        int t = source.getTimeIndex(index);
+        int[] b = source.getBounds(index, cal);
+
+        // Pad and clip to the dataset
+        int x0 = Math.min(cal.xSize - 1, Math.max(0, b[0] - padding));
+        int y0 = Math.min(cal.ySize - 1, Math.max(0, b[1] - padding));
+        int z0 = Math.min(cal.zSize - 1, Math.max(0, b[2] - padding));
+        int x1 = Math.min(cal.xSize, b[0] + b[3] + padding);
+        int y1 = Math.min(cal.ySize, b[1] + b[4] + padding);
+        int z1 = Math.min(cal.zSize, b[2] + b[5] + padding);
+        int[] bounds = {x0, y0, z0, Math.max(1, x1 - x0), Math.max(1, y1 - y0), Math.max(1, z1 - z0)};
+
+        ImagePlus image = new DatasetQuery(dataset, cal)
+                .selectRegion(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5])
+                .selectTimepoint(t)
+                .get();
+        long id = source.getId(index);
+        image.setTitle(source.getName() + "-" + id);
+
+        ImageStack maskStack = source.getMask(index, bounds, cal);
+        ImagePlus mask = new ImagePlus(source.getName() + "-" + id + "-Mask", maskStack);
+        mask.setCalibration(image.getCalibration().copy());
+        mask.setDisplayRange(0, 255);
+        mask.setProperty("Time Index", t);
+
+        return new Crop(id, t, bounds, image, mask);
+    }
+
+    /**
+     * @return a sequential stream of the crops, which closes this object when closed
+     */
+    public Stream<Crop> stream() {
+        Spliterator<Crop> spliterator = Spliterators.spliterator(this, size(),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    /**
+     * Saves all crops as TIFF files, in sub-folders of at most chunkSize objects each, along with an objects.csv index
+     * giving the id, timepoint, bounds in dataset pixels and files of each object
+     *
+     * @param directory the folder to write to, created if needed
+     * @param chunkSize the number of objects per sub-folder
+     * @throws Error       an Imaris Error
+     * @throws IOException if the files cannot be written
+     */
+    public void writeTo(File directory, int chunkSize) throws Error, IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        try (PrintWriter index = new PrintWriter(new File(directory, "objects.csv"), "UTF-8")) {
+            index.println("id,timepoint,x,y,z,width,height,depth,image,mask");
+            int n = 0;
+            while (hasNext()) {
+                Crop crop = next();
+                String chunk = String.format(Locale.ROOT, "chunk-%05d", n++ / Math.max(1, chunkSize));
+                File folder = new File(directory, chunk);
+                if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Cannot create " + folder);
+
+                String image = chunk + "/" + crop.getId() + ".tif";
+                String mask = chunk + "/" + crop.getId() + "-mask.tif";
+                if (!new FileSaver(crop.getImage()).saveAsTiff(new File(directory, image).getPath())
+                        || !new FileSaver(crop.getMask()).saveAsTiff(new File(directory, mask).getPath())) {
+                    throw new IOException("Cannot save crop of object " + crop.getId() + " in " + folder);
+                }
+
+                int[] b = crop.getBounds();
+                index.println(crop.getId() + "," + crop.getTimeIndex() + "," + b[0] + "," + b[1] + "," + b[2] + ","
+                        + b[3] + "," + b[4] + "," + b[5] + "," + image + "," + mask);
+            }
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public Iterator<Crop> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return crops.hasNext();
+    }
+
+    @Override
+    public Crop next() {
+        return crops.next();
+    }
+
+    /**
+     * Stops reading ahead. Crops already read are dropped
+     */
+    @Override
+    public void close() {
+        crops.close();
+    }
+
+    /**
+     * The crop of a single object
+     */
+    public static class Crop {
+        private final long id;
+        private final int timeIndex;
+        private final int[] bounds;
+        private final ImagePlus image;
+        private final ImagePlus mask;
+
+        Crop(long id, int timeIndex, int[] bounds, ImagePlus image, ImagePlus mask) {
+            this.id = id;
+            this.timeIndex = timeIndex;
+            this.bounds = bounds;
+            this.image = image;
+            this.mask = mask;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getTimeIndex() {
+            return timeIndex;
+        }
+
+        /**
+         * @return a copy of the padded bounds of the crop in dataset pixels: x, y, z, sizeX, sizeY, sizeZ
+         */
+        public int[] getBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * @return all channels of the dataset within the crop, at the timepoint of the object
+         */
+        public ImagePlus getImage() {
+            return image;
+        }
+
+        /**
+         * @return an 8-bit mask of the object within the crop, 255 inside
+         */
+        public ImagePlus getMask() {
+            return mask;
+        }
+    }
+
+    /**
+     * Where the objects come from
+     */
+    private interface Source {
+        String getName();
+
+        int size();
+
+        long getId(int index);
+
+        int getTimeIndex(int index) throws Error;
+
+        /**
+         * @return the bounds of the object in dataset pixels, x, y, z, sizeX, sizeY, sizeZ, not clipped
+         */
+        int[] getBounds(int index, ImarisCalibration cal) throws Error;
+
+        /**
+         * @return an 8-bit stack of the object within the given bounds, 255 inside
+         */
+        ImageStack getMask(int index, int[] bounds, ImarisCalibration cal) throws Error;
+    }
+
+    private static class SurfacesSource implements Source {
+        private final SurfacesSnapshot snapshot;
+        private final String name;
+
+        SurfacesSource(SurfacesSnapshot snapshot) throws Error {
+            this.snapshot = snapshot;
+            this.name = EasyXT.Scene.getName(snapshot.getSurface());
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int size() {
+            return snapshot.size();
+        }
+
+        @Override
+        public long getId(int index) {
+            return snapshot.getId(index);
+        }
+
+        @Override
+        public int getTimeIndex(int index) throws Error {
+            return snapshot.getTimeIndex(index);
+        }
+
+        @Override
+        public int[] getBounds(int index, ImarisCalibration cal) throws Error {
+            return SurfaceLabelExporter.getBounds(EasyXT.Surfaces.adjustBounds(snapshot.getLayout(index), cal), cal);
+        }
+
+        @Override
+        public ImageStack getMask(int index, int[] b, ImarisCalibration cal) throws Error {
+            // Same grid as the dataset, so that the mask matches the image voxel for voxel
+            IDataSetPrx mask = snapshot.getSurface().GetSingleMask(index,
+                    (float) ((cal.xOrigin + b[0]) * cal.pixelWidth),
+                    (float) ((cal.yOrigin + b[1]) * cal.pixelHeight),
+                    (float) ((cal.zOrigin + b[2]) * cal.pixelDepth),
+                    (float) ((cal.xOrigin + b[0] + b[3]) * cal.pixelWidth),
+                    (float) ((cal.yOrigin + b[1] + b[4]) * cal.pixelHeight),
+                    (float) ((cal.zOrigin + b[2] + b[5]) * cal.pixelDepth),
+                    b[3], b[4], b[5]);
+            Object block;
+            try {
+                block = DatasetTransfer.readBlock(mask, EasyXT.Dataset.getBitDepth(mask), 0, 0, 0, 0, 0, b[3], b[4], b[5]);
+            } finally {
+                mask.Dispose();
+            }
+
+            int planeSize = b[3] * b[4];
+            ImageStack stack = new ImageStack(b[3], b[4]);
+            for (int z = 0; z < b[5]; z++) {
+                byte[] plane = new byte[planeSize];
+                for (int i = 0; i < planeSize; i++) {
+                    if (isSet(block, z * planeSize + i)) plane[i] = (byte) 255;
+                }
+                stack.addSlice("", plane);
+            }
+            return stack;
+        }
+
+        private static boolean isSet(Object block, int i) {
+            if (block instanceof byte[]) return ((byte[]) block)[i] != 0;
+            if (block instanceof short[]) return ((short[]) block)[i] != 0;
+            return ((float[]) block)[i] != 0;
+        }
+    }
+
+    private static class SpotsSource implements Source {
+        private final String name;
+        private final long[] ids;
+        private final float[][] positions;
+        private final float[][] radii;
+        private final int[] timepoints;
+
+        SpotsSource(ISpotsPrx spots) throws Error {
+            this.name = EasyXT.Scene.getName(spots);
+            this.ids = spots.GetIds();
+            this.positions = spots.GetPositionsXYZ();
+            this.radii = spots.GetRadiiXYZ();
+            this.timepoints = spots.GetIndicesT();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public long getId(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public int getTimeIndex(int index) {
+            return timepoints[index];
+        }
+
+        @Override
+        public int[] getBounds(int index, ImarisCalibration cal) {
+            float[] p = positions[index], r = radii[index];
+            int x0 = (int) Math.floor((p[0] - r[0] - cal.xStart) / cal.pixelWidth);
+            int y0 = (int) Math.floor((p[1] - r[1] - cal.yStart) / cal.pixelHeight);
+            int z0 = (int) Math.floor((p[2] - r[2] - cal.zStart) / cal.pixelDepth);
+            int x1 = (int) Math.ceil((p[0] + r[0] - cal.xStart) / cal.pixelWidth);
+            int y1 = (int) Math.ceil((p[1] + r[1] - cal.yStart) / cal.pixelHeight);
+            int z1 = (int) Math.ceil((p[2] + r[2] - cal.zStart) / cal.pixelDepth);
+            return new int[]{x0, y0, z0, x1 - x0, y1 - y0, z1 - z0};
+        }
+
+        @Override
+        public ImageStack getMask(int index, int[] b, ImarisCalibration cal) {
+            float[] p = positions[index];
+            // At least half a voxel, so that spots with a null radius do not divide by zero and get an empty mask
+            double rx = Math.max(radii[index][0], cal.pixelWidth / 2);
+            double ry = Math.max(radii[index][1], cal.pixelHeight / 2);
+            double rz = Math.max(radii[index][2], cal.pixelDepth / 2);
+
+            // The voxel holding the center is always in the mask, even when no voxel center is within the radius
+            int cx = (int) Math.floor((p[0] - cal.xStart) / cal.pixelWidth) - b[0];
+            int cy = (int) Math.floor((p[1] - cal.yStart) / cal.pixelHeight) - b[1];
+            int cz = (int) Math.floor((p[2] - cal.zStart) / cal.pixelDepth) - b[2];
+
+            ImageStack stack = new ImageStack(b[3], b[4]);
+            for (int z = 0; z < b[5]; z++) {
+                byte[] plane = new byte[b[3] * b[4]];
+                // Voxel centers, in physical units, relative to the spot center
+                double dz = (cal.zStart + (b[2] + z + 0.5) * cal.pixelDepth - p[2]) / rz;
+                for (int y = 0; y < b[4]; y++) {
+                    double dy = (cal.yStart + (b[1] + y + 0.5) * cal.pixelHeight - p[1]) / ry;
+                    for (int x = 0; x < b[3]; x++) {
+                        double dx = (cal.xStart + (b[0] + x + 0.5) * cal.pixelWidth - p[0]) / rx;
+                        if (dx * dx + dy * dy + dz * dz <= 1 || (x == cx && y == cy && z == cz)) {
+                            plane[y * b[3] + x] = (byte) 255;
+                        }
+                    }
+                }
+                stack.addSlice("", plane);
+            }
+            return stack;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import ij.ImagePlus;
+
+import java.lang.reflect.Array;
+
+/**
+ * Converts planes or blocks of pixels between 8-bit, 16-bit and 32-bit on the fly, while they are being transferred
+ * to Imaris, so that neither the source image nor the dataset need to be converted as a whole beforehand.
+ * <p>
+ * Three policies are available:
+ * <ul>
+ *     <li>{@link Policy#CLAMP}: values are kept as they are, and clipped to the range of the target type. This is
+ *     what ImageJ does when converting 8-bit to 16-bit or 32-bit</li>
+ *     <li>{@link Policy#SCALE}: values between a min and max are linearly mapped to the full range of an integer
+ *     target type and clipped outside. This is what ImageJ does when converting to 8-bit with "Scale when converting"
+ *     on</li>
+ *     <li>{@link Policy#FULL_RANGE}: the full range of the source type is mapped to the full range of the target type,
+ *     for example 0-255 to 0-65535</li>
+ * </ul>
+ * 32-bit targets always receive the converted values without scaling for {@link Policy#CLAMP}.
+ * <p>
+ * Converters are immutable and can be shared between threads. Intermediate buffers are kept per thread and reused.
+ */
+public class PixelConverter {
+
+    /**
+     * How values are mapped from the source to the target type
+     */
+    public enum Policy {
+        CLAMP,
+        SCALE,
+        FULL_RANGE
+    }
+
+    // Reused between calls on the same thread, grown as needed
+    private static final ThreadLocal<float[]> floatBuffer = ThreadLocal.withInitial(() -> new float[0]);
+    // Two block buffers per bit depth, so that full slabs and a shorter last slab do not replace each other
+    private static final ThreadLocal<Object[][]> blockBuffers = ThreadLocal.withInitial(() -> new Object[3][2]);
+
+    private final Policy policy;
+    private final double min;
+    private final double max;
+
+    private PixelConverter(Policy policy, double min, double max) {
+        this.policy = policy;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return a converter which keeps values and clips them to the range of the target type
+     */
+    public static PixelConverter clamp() {
+        return new PixelConverter(Policy.CLAMP, 0, 0);
+    }
+
+    /**
+     * @param min the source value mapped to 0
+     * @param max the source value mapped to the maximum of the target type (255 or 65535)
+     * @return a converter which linearly maps [min, max] to the range of the target type
+     */
+    public static PixelConverter scale(double min, double max) {
+        return new PixelConverter(Policy.SCALE, min, max);
+    }
+
+    /**
+     * @param imp the image to take the display range from
+     * @return a converter which maps the current display range of the image to the range of the target type
+     */
+    public static PixelConverter scale(ImagePlus imp) {
+        return scale(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+    }
+
+    /**
+     * @return a converter which maps the full range of the source type to the full range of the target type
+     */
+    public static PixelConverter fullRange() {
+        return new PixelConverter(Policy.FULL_RANGE, 0, 0);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Converts a plane into a new array of the requested bit depth
+     *
+     * @param src            a byte[], short[] or float[] array
+     * @param targetBitDepth 8, 16 or 32
+     * @return a new byte[], short[] or float[] array, or the source itself if nothing needs to change
+     */
+    public Object convert(Object src, int targetBitDepth) {
+        int n = Array.getLength(src);
+        if (bitDepthOf(src) == targetBitDepth && policy != Policy.SCALE) return src;
+        Object dst = newArray(targetBitDepth, n);
+        convert(src, 0, dst, 0, n);
+        return dst;
+    }
+
+    /**
+     * Converts n pixels of the source array into the destination array. Arrays are unsigned byte[] or short[], or
+     * float[], in any combination
+     *
+     * @param src       the source array
+     * @param srcOffset index of the first pixel to convert in the source
+     * @param dst       the destination array
+     * @param dstOffset index where to write the first converted pixel
+     * @param n         the number of pixels to convert
+     */
+    public void convert(Object src, int srcOffset, Object dst, int dstOffset, int n) {
+        int srcBitDepth = bitDepthOf(src);
+        int dstBitDepth = bitDepthOf(dst);
+
+        // Plain copy, nothing to map
+        if (srcBitDepth == dstBitDepth && policy != Policy.SCALE) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, n);
+            return;
+        }
+
+        float[] values = getFloatBuffer(n);
+        toFloat(src, srcOffset, values, n);
+
+        double targetMax = dstBitDepth == 8 ? 255 : 65535;
+        double offset = 0;
+        double factor = 1;
+        switch (policy) {
+            case SCALE:
+                if (dstBitDepth != 32) {
+                    offset = min;
+                    factor = max > min ? targetMax / (max - min) : 1;
+                }
+                break;
+            case FULL_RANGE:
+                if (dstBitDepth != 32 && srcBitDepth != 32) {
+                    factor = targetMax / (srcBitDepth == 8 ? 255 : 65535);
+                } else if (dstBitDepth != 32) {
+                    // float has no fixed range, fall back to 0-1
+                    factor = targetMax;
+                }
+                break;
+            default:
+                break;
+        }
+
+        switch (dstBitDepth) {
+            case 8: {
+                byte[] out = (byte[]) dst;
+                for (int i = 0; i < n; i++) {
+                    out[dstOffset + i] = (byte) clip((values[i] - offset) * factor, 255);
+                }
+                break;
+            }
+            case 16: {
+                short[] out = (short[]) dst;
+                for (int i = 0; i < n; i++) {
+                    out[dstOffset + i] = (short) clip((values[i] - offset) * factor, 65535);
+                }
+                break;
+            }
+            default: {
+                float[] out = (float[]) dst;
+                for (int i = 0; i < n; i++) {
+                    out[dstOffset + i] = (float) ((values[i] - offset) * factor);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns an array of the given bit depth and of exactly the requested size, reused between calls on the same
+     * thread. The content is undefined, and the array must not be kept after the next call on this thread.
+     * <p>
+     * Imaris takes whole arrays, which cannot be sliced out of a larger buffer, so only buffers of the same length
+     * are reused. The two most recent sizes are kept per bit depth.
+     *
+     * @param bitDepth 8, 16 or 32
+     * @param size     the number of elements
+     * @return a byte[], short[] or float[] array
+     */
+    static Object getBlockBuffer(int bitDepth, int size) {
+        Object[] buffers = blockBuffers.get()[bitDepth == 8 ? 0 : bitDepth == 16 ? 1 : 2];
+        Object buffer = buffers[0];
+        if (buffer != null && Array.getLength(buffer) == size) return buffer;
+
+        // The most recently used buffer goes first
+        buffer = buffers[1];
+        if (buffer == null || Array.getLength(buffer) != size) buffer = newArray(bitDepth, size);
+        buffers[1] = buffers[0];
+        buffers[0] = buffer;
+        return buffer;
+    }
+
+    static int bitDepthOf(Object array) {
+        if (array instanceof byte[]) return 8;
+        if (array instanceof short[]) return 16;
+        if (array instanceof float[]) return 32;
+        throw new IllegalArgumentException("Unsupported pixel array " + array.getClass().getSimpleName());
+    }
+
+    static Object newArray(int bitDepth, int size) {
+        switch (bitDepth) {
+            case 8:
+                return new byte[size];
+            case 16:
+                return new short[size];
+            case 32:
+                return new float[size];
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        }
+    }
+
+    private static float[] getFloatBuffer(int n) {
+        float[] buffer = floatBuffer.get();
+        if (buffer.length < n) {
+            buffer = new float[n];
+            floatBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static void toFloat(Object src, int srcOffset, float[] values, int n) {
+        if (src instanceof byte[]) {
+            byte[] in = (byte[]) src;
+            for (int i = 0; i < n; i++) values[i] = in[srcOffset + i] & 0xff;
+        } else if (src instanceof short[]) {
+            short[] in = (short[]) src;
+            for (int i = 0; i < n; i++) values[i] = in[srcOffset + i] & 0xffff;
+        } else {
+            System.arraycopy(src, srcOffset, values, 0, n);
+        }
+    }
+
+    private static int clip(double value, int max) {
+        if (value <= 0) return 0;
+        if (value >= max) return max;
+        return (int) (value + 0.5);
+    }
+
+    @Override
+    public String toString() {
+        return policy == Policy.SCALE ? "PixelConverter[" + policy + " " + min + "-" + max + "]" : "PixelConverter[" + policy + "]";
+    }
+}
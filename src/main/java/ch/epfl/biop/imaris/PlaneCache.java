@@ -0,0 +1,341 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * An opt-in cache that keeps the planes read from Imaris in local, memory-mapped raw files, so that reading the same
+ * data again, even in a later Fiji session, is served from the disk instead of being transferred again.
+ * <p>
+ * Only the dataset of the file opened in Imaris is cached, never temporary or derived datasets such as masks or
+ * clones. Each file gets its own folder, named after the Imaris file and a digest of the file name, its last
+ * modification date and the geometry of the dataset (sizes, type and extents). Each channel and timepoint is stored as
+ * a raw file with all the Z slices (see {@link MappedImageStack}), next to an index of the slices already read.
+ * <p>
+ * The cache must be enabled, and then asked for on each read with {@link DatasetQuery#setUseCache(boolean)}. Cached
+ * planes are dropped when EasyXT writes to the same channel and timepoint of the dataset, and the digest changes when
+ * the file is saved or the dataset resized. Processing done in Imaris without saving is not detected: only use the
+ * cache for data that does not change, or {@link #clear()} it.
+ * <p>
+ * Only full planes are stored. Reads of a region are served from the cache if the planes are there, and go directly to
+ * Imaris otherwise.
+ * <pre>
+ * PlaneCache.enable();
+ * ImagePlus imp = EasyXT.Dataset.query(dataset).setUseCache(true).get(); // from Imaris, cached
+ * ImagePlus again = EasyXT.Dataset.query(dataset).setUseCache(true).get(); // from the disk
+ * </pre>
+ */
+public class PlaneCache {
+
+    private static final Logger log = Logger.getLogger(PlaneCache.class.getName());
+
+    private static File directory = null;
+
+    // Stores opened during this session, by key
+    private static final Map<String, Store> stores = new HashMap<>();
+
+    /**
+     * Enables the cache in the default folder, "EasyXT-cache" in the temporary folder
+     */
+    public static void enable() {
+        enable(new File(System.getProperty("java.io.tmpdir"), "EasyXT-cache"));
+    }
+
+    /**
+     * Enables the cache in the given folder
+     *
+     * @param folder where to store the cached planes. It is created if needed
+     */
+    public static synchronized void enable(File folder) {
+        folder.mkdirs();
+        closeStores();
+        directory = folder;
+        log.info("Caching planes read from Imaris in " + folder.getAbsolutePath());
+    }
+
+    /**
+     * Disables the cache. Cached files are kept on disk, see {@link #clear()}
+     */
+    public static synchronized void disable() {
+        closeStores();
+        directory = null;
+    }
+
+    public static boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Deletes all the cached files. Files still in use, for example mapped by an image that is still open, cannot be
+     * deleted on some systems and are reported in the log
+     *
+     * @return true if all files were deleted
+     */
+    public static synchronized boolean clear() {
+        if (directory == null) return true;
+        // Files must be unmapped before they can be deleted on Windows
+        closeStores();
+        File[] folders = directory.listFiles(File::isDirectory);
+        if (folders == null) return true;
+        boolean deleted = true;
+        for (File folder : folders) {
+            File[] files = folder.listFiles();
+            if (files != null) for (File file : files) deleted &= delete(file);
+            deleted &= delete(folder);
+        }
+        return deleted;
+    }
+
+    private static boolean delete(File file) {
+        if (file.delete()) return true;
+        log.warning("Could not delete cached file " + file.getAbsolutePath());
+        return false;
+    }
+
+    private static void closeStores() {
+        for (Store store : stores.values()) store.close();
+        stores.clear();
+    }
+
+    /**
+     * Drops the cached planes of a channel and timepoint of a dataset, as they are about to be modified. Called for
+     * every write to Imaris, writes to datasets that are not cached do nothing
+     *
+     * @param dataset the dataset written to
+     * @param c       the channel
+     * @param t       the timepoint
+     */
+    static void invalidate(IDataSetPrx dataset, int c, int t) {
+        if (directory == null) return;
+        String identity = identityOf(dataset);
+        synchronized (PlaneCache.class) {
+            for (Store store : stores.values()) {
+                if (store.identity.equals(identity)) store.invalidate(c, t);
+            }
+        }
+    }
+
+    private static String identityOf(IDataSetPrx dataset) {
+        return Ice.Util.identityToString(dataset.ice_getIdentity());
+    }
+
+    /**
+     * Returns the cache of a dataset, creating it if needed
+     *
+     * @param dataset  the dataset to cache
+     * @param bitDepth its bit depth
+     * @return the store for this dataset, or null if it cannot be cached because it is not the dataset of a saved file
+     * @throws Error an Imaris Error
+     */
+    static synchronized Store open(IDataSetPrx dataset, int bitDepth) throws Error {
+        // Only the dataset of the opened file, temporary datasets share its geometry but not its data
+        String identity = identityOf(dataset);
+        IDataSetPrx current = EasyXT.Utils.getImarisApp().GetDataSet();
+        if (current == null || !identityOf(current).equals(identity)) return null;
+
+        String fileName = EasyXT.Utils.getImarisApp().GetCurrentFileName();
+        File imarisFile = new File(fileName);
+        if (fileName.isEmpty() || !imarisFile.isFile()) return null;
+
+        String description = fileName + "|" + imarisFile.lastModified()
+                + "|" + dataset.GetSizeX() + "|" + dataset.GetSizeY() + "|" + dataset.GetSizeZ()
+                + "|" + dataset.GetSizeC() + "|" + dataset.GetSizeT() + "|" + bitDepth
+                + "|" + dataset.GetExtendMinX() + "|" + dataset.GetExtendMinY() + "|" + dataset.GetExtendMinZ()
+                + "|" + dataset.GetExtendMaxX() + "|" + dataset.GetExtendMaxY() + "|" + dataset.GetExtendMaxZ();
+        String key = imarisFile.getName().replaceAll("[^A-Za-z0-9._-]", "_") + "-" + digest(description);
+
+        Store store = stores.get(key);
+        if (store == null || !store.identity.equals(identity)) {
+            if (store != null) store.close();
+            store = new Store(new File(directory, key), identity, dataset, bitDepth);
+            stores.put(key, store);
+        }
+        return store;
+    }
+
+    private static String digest(String description) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The cached planes of one dataset
+     */
+    static class Store {
+        private final File folder;
+        // The dataset this store was opened for, in this session
+        private final String identity;
+        private final int bitDepth;
+        private final int sx, sy, sz;
+
+        // Opened lazily, by channel and timepoint
+        private final Map<Long, MappedImageStack> volumes = new HashMap<>();
+        private final Map<Long, byte[]> indices = new HashMap<>();
+
+        // Incremented by each invalidation, so that reads which started before it do not mark their planes as valid
+        private long generation = 0;
+
+        private Store(File folder, String identity, IDataSetPrx dataset, int bitDepth) throws Error {
+            this.folder = folder;
+            this.identity = identity;
+            this.bitDepth = bitDepth;
+            this.sx = dataset.GetSizeX();
+            this.sy = dataset.GetSizeY();
+            this.sz = dataset.GetSizeZ();
+            folder.mkdirs();
+        }
+
+        /**
+         * Reads slices of a channel and timepoint. Missing full planes are read from Imaris and cached. Regions are
+         * served from the cache if all their planes are there, and read directly from Imaris otherwise
+         *
+         * @param dataset the dataset this store was opened for
+         * @return true if the planes were given to the consumer, false if the caller should read them itself
+         */
+        boolean read(IDataSetPrx dataset, int c, int t, int x, int y, int z, int w, int h, int nSlices, DatasetTransfer.PlaneConsumer consumer) throws Error {
+            long ct = ((long) c << 32) | t;
+            MappedImageStack volume;
+            byte[] index;
+            try {
+                synchronized (this) {
+                    volume = getVolume(ct, c, t);
+                    index = indices.get(ct);
+                }
+            } catch (IOException e) {
+                log.warning("Could not use the plane cache: " + e.getMessage());
+                return false;
+            }
+
+            boolean fullPlanes = x == 0 && y == 0 && w == sx && h == sy;
+            boolean complete = true;
+            for (int i = z; i < z + nSlices; i++) complete &= index[i] != 0;
+            if (!complete && !fullPlanes) return false;
+
+            if (!complete) {
+                // Read the missing runs of slices in as few calls as possible
+                int start = z;
+                while (start < z + nSlices) {
+                    if (index[start] != 0) {
+                        start++;
+                        continue;
+                    }
+                    int end = start;
+                    while (end < z + nSlices && index[end] == 0) end++;
+                    final int runStart = start;
+                    long readGeneration;
+                    synchronized (this) {
+                        readGeneration = generation;
+                    }
+                    DatasetTransfer.read(dataset, bitDepth, 0, 0, runStart, sx, sy, end - runStart, new int[]{c}, new int[]{t},
+                            (ci, zi, ti, pixels) -> volume.setPixels(pixels, runStart + zi + 1));
+                    synchronized (this) {
+                        // A write during the read may have changed these planes, they will be read again next time
+                        if (generation == readGeneration) {
+                            Arrays.fill(index, runStart, end, (byte) 1);
+                            saveIndex(ct, c, t);
+                        }
+                    }
+                    start = end;
+                }
+            }
+
+            for (int i = 0; i < nSlices; i++) {
+                consumer.accept(0, i, 0, volume.getPixels(z + i + 1, x, y, w, h));
+            }
+            return true;
+        }
+
+        synchronized void invalidate(int c, int t) {
+            generation++;
+            long ct = ((long) c << 32) | t;
+            byte[] index = indices.get(ct);
+            if (index != null && containsData(index)) {
+                Arrays.fill(index, (byte) 0);
+                saveIndex(ct, c, t);
+            }
+        }
+
+        private MappedImageStack getVolume(long ct, int c, int t) throws IOException {
+            MappedImageStack volume = volumes.get(ct);
+            if (volume == null) {
+                volume = new MappedImageStack(new File(folder, name(c, t) + ".raw"), sx, sy, sz, bitDepth);
+                volumes.put(ct, volume);
+
+                // Index: one byte per slice
+                File indexFile = new File(folder, name(c, t) + ".idx");
+                byte[] index = new byte[sz];
+                if (indexFile.length() == index.length) {
+                    index = Files.readAllBytes(indexFile.toPath());
+                }
+                indices.put(ct, index);
+            }
+            return volume;
+        }
+
+        private boolean containsData(byte[] index) {
+            for (int i = 0; i < sz; i++) if (index[i] != 0) return true;
+            return false;
+        }
+
+        private void saveIndex(long ct, int c, int t) {
+            try {
+                Files.write(new File(folder, name(c, t) + ".idx").toPath(), indices.get(ct));
+            } catch (IOException e) {
+                log.warning("Could not save the plane cache index: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Unmaps all files, so that they can be deleted
+         */
+        synchronized void close() {
+            for (MappedImageStack volume : volumes.values()) volume.close();
+            volumes.clear();
+            indices.clear();
+        }
+
+        private static String name(int c, int t) {
+            return "c" + c + "_t" + t;
+        }
+    }
+}
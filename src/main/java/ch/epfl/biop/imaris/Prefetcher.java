@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs a producer on a background thread, which hands items to the consumer through a bounded queue, so that the
+ * producer never gets more than a fixed number of items ahead.
+ * <p>
+ * The end of the stream and failures are not sent through the queue, which may be full, but kept aside: the consumer
+ * gets all items produced before the producer stopped, and then either the end of the stream or the failure, even if
+ * the producer threw an unexpected exception.
+ *
+ * @param <T> the type of the items
+ */
+class Prefetcher<T> implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(Prefetcher.class.getName());
+
+    /**
+     * Produces the items, giving them to {@link #put(Object)}
+     */
+    @FunctionalInterface
+    interface Producer<T> {
+        void produce(Prefetcher<T> sink) throws Error, InterruptedException;
+    }
+
+    private final BlockingQueue<T> queue;
+    private final Thread thread;
+
+    private volatile boolean done = false;
+    private volatile Throwable failure = null;
+    private volatile boolean closed = false;
+
+    private T next = null;
+
+    /**
+     * Starts the producer
+     *
+     * @param name     the name of the producer thread
+     * @param capacity how many items can wait for the consumer, at least 1
+     * @param producer what produces the items
+     */
+    Prefetcher(String name, int capacity, Producer<T> producer) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.thread = new Thread(() -> {
+            try {
+                producer.produce(this);
+            } catch (InterruptedException e) {
+                // Closed while waiting for room in the queue
+            } catch (Error error) {
+                log.severe(name + " failed: " + error.mDescription);
+                failure = error;
+            } catch (Throwable e) {
+                // Also out of memory errors, which must not look like the end of the stream
+                log.severe(name + " failed: " + e);
+                failure = e;
+            } finally {
+                done = true;
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gives an item to the consumer, waiting for room in the queue
+     *
+     * @param item the item
+     * @throws InterruptedException if the consumer closed the stream
+     */
+    void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * @return true once the consumer has closed the stream, the producer should stop
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits for the next item
+     *
+     * @return true if there is one, false at the end of the stream
+     * @throws IllegalStateException if the producer failed, with the Imaris Error, exception or error as cause
+     */
+    boolean hasNext() {
+        while (next == null && !closed) {
+            // Check whether the producer stopped before polling, so that no item is missed
+            boolean stopped = done;
+            try {
+                next = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (next == null && stopped) {
+                Throwable e = failure;
+                if (e == null) return false;
+                String description = e instanceof Error ? ((Error) e).mDescription : e.toString();
+                throw new IllegalStateException("Streaming from Imaris failed: " + description, e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * @return the next item
+     */
+    T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T item = next;
+        next = null;
+        return item;
+    }
+
+    /**
+     * Stops the producer. Items already produced are dropped
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        queue.clear();
+        next = null;
+    }
+}
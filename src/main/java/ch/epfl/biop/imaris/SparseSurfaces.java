@@ -0,0 +1,377 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import Imaris.ISurfacesPrx;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sparse representation of surfaces: for each surface, its id, timepoint, bounding box and the runs of voxels it
+ * covers along X, in the pixels of the current dataset.
+ * <p>
+ * A dense label image of a whole time-lapse is mostly background and can weigh gigabytes, while runs only cost a few
+ * integers per row of each object. Counting voxels, measuring overlaps or intensities can be done directly on the runs,
+ * and the dense label image, or a single plane of it, is only built when asked for.
+ */
+public class SparseSurfaces {
+
+    private final String name;
+    private final ImarisCalibration cal;
+    private final List<SparseSurface> surfaces;
+
+    private SparseSurfaces(String name, ImarisCalibration cal, List<SparseSurface> surfaces) {
+        this.name = name;
+        this.cal = cal;
+        this.surfaces = surfaces;
+    }
+
+    /**
+     * Fetches the mask of each surface, several at a time on the transfer threads, and keeps only its runs
+     *
+     * @param surface the surfaces to encode
+     * @return the sparse surfaces, in the order of the Imaris surface indices
+     * @throws Error an Imaris Error
+     */
+    public static SparseSurfaces of(ISurfacesPrx surface) throws Error {
+        SurfacesSnapshot snapshot = new SurfacesSnapshot(surface).prefetch();
+        ImarisCalibration cal = new ImarisCalibration(EasyXT.Dataset.getCurrent());
+        cal.cSize = 1;
+
+        int n = snapshot.size();
+        SparseSurface[] encoded = new SparseSurface[n];
+
+        TransferMonitor monitor = TransferMonitor.get();
+        TransferMonitor.Operation operation = monitor.begin("Encoding " + n + " surfaces", n);
+        try {
+            List<DatasetTransfer.Task> tasks = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                final int index = i;
+                tasks.add(() -> {
+                    encoded[index] = encode(snapshot, index, cal);
+                    monitor.step(operation);
+                });
+            }
+            DatasetTransfer.runAll(tasks);
+        } finally {
+            monitor.end(operation);
+        }
+
+        return new SparseSurfaces(EasyXT.Scene.getName(surface), cal, Collections.unmodifiableList(Arrays.asList(encoded)));
+    }
+
+    /**
+     * Requests the mask of a single surface within its bounds, slab by slab, and encodes its runs, clipped to the
+     * dataset. Slices outside of the dataset are not requested, and only the runs of each plane are kept
+     */
+    private static SparseSurface encode(SurfacesSnapshot snapshot, int index, ImarisCalibration cal) throws Error {
+        int t = snapshot.getTimeIndex(index);
+        int[] b = SurfaceLabelExporter.getBounds(EasyXT.Surfaces.adjustBounds(snapshot.getLayout(index), cal), cal);
+        int w = b[3], h = b[4], d = b[5];
+        int kFrom = Math.max(0, -b[2]), kTo = Math.min(d, cal.zSize - b[2]);
+        if (kFrom >= kTo || w < 1 || h < 1) return new SparseSurface(snapshot.getId(index), t, b, new int[0]);
+
+        IDataSetPrx mask = snapshot.getSurface().GetSingleMask(index,
+                (float) ((cal.xOrigin + b[0]) * cal.pixelWidth),
+                (float) ((cal.yOrigin + b[1]) * cal.pixelHeight),
+                (float) ((cal.zOrigin + b[2]) * cal.pixelDepth),
+                (float) ((cal.xOrigin + b[0] + w) * cal.pixelWidth),
+                (float) ((cal.yOrigin + b[1] + h) * cal.pixelHeight),
+                (float) ((cal.zOrigin + b[2] + d) * cal.pixelDepth),
+                w, h, d);
+        // Planes may arrive in any order, so runs are kept per plane and joined in Z order
+        int[][] planeRuns = new int[kTo - kFrom][];
+        try {
+            DatasetTransfer.read(mask, EasyXT.Dataset.getBitDepth(mask), 0, 0, kFrom, w, h, kTo - kFrom,
+                    new int[]{0}, new int[]{0},
+                    (c, k, tt, pixels) -> planeRuns[k] = encodePlane(pixels, b[0], b[1], b[2] + kFrom + k, w, h, cal.xSize, cal.ySize));
+        } finally {
+            mask.Dispose();
+        }
+
+        int size = 0;
+        for (int[] runs : planeRuns) size += runs.length;
+        int[] runs = new int[size];
+        int offset = 0;
+        for (int[] plane : planeRuns) {
+            System.arraycopy(plane, 0, runs, offset, plane.length);
+            offset += plane.length;
+        }
+        return new SparseSurface(snapshot.getId(index), t, b, runs);
+    }
+
+    /**
+     * Encodes the runs of a single mask plane, clipped to the dataset in X and Y
+     *
+     * @param plane the w * h mask plane, where non-zero values are inside
+     * @param x     the position of the plane in the dataset, possibly outside of it
+     * @param y     the position of the plane in the dataset, possibly outside of it
+     * @param z     the slice of the plane in the dataset
+     * @param w     the width of the plane
+     * @param h     the height of the plane
+     * @param xSize the width of the dataset
+     * @param ySize the height of the dataset
+     * @return the runs as consecutive z, y, x, length values in dataset pixels, sorted by y and x
+     */
+    static int[] encodePlane(Object plane, int x, int y, int z, int w, int h, int xSize, int ySize) {
+        int[] runs = new int[64];
+        int size = 0;
+        int xFrom = Math.max(0, x), xTo = Math.min(xSize, x + w);
+        for (int j = Math.max(0, -y); j < h && y + j < ySize; j++) {
+            int row = j * w - x;
+            int i = xFrom;
+            while (i < xTo) {
+                if (!isSet(plane, row + i)) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < xTo && isSet(plane, row + i)) i++;
+                if (size + 4 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                runs[size++] = z;
+                runs[size++] = y + j;
+                runs[size++] = start;
+                runs[size++] = i - start;
+            }
+        }
+        return Arrays.copyOf(runs, size);
+    }
+
+    private static boolean isSet(Object block, int i) {
+        if (block instanceof byte[]) return ((byte[]) block)[i] != 0;
+        if (block instanceof short[]) return ((short[]) block)[i] != 0;
+        return ((float[]) block)[i] != 0;
+    }
+
+    /**
+     * @return all surfaces, by Imaris index
+     */
+    public List<SparseSurface> getSurfaces() {
+        return surfaces;
+    }
+
+    /**
+     * @param t the timepoint, 0-based
+     * @return the surfaces at this timepoint
+     */
+    public List<SparseSurface> getSurfaces(int t) {
+        List<SparseSurface> result = new ArrayList<>();
+        for (SparseSurface s : surfaces) if (s.getTimeIndex() == t) result.add(s);
+        return result;
+    }
+
+    /**
+     * @return the calibration of the dataset the surfaces were encoded in
+     */
+    public ImarisCalibration getCalibration() {
+        return cal;
+    }
+
+    /**
+     * @return the largest surface id, or -1 if there are none
+     */
+    public long getMaxId() {
+        long max = -1;
+        for (SparseSurface s : surfaces) max = Math.max(max, s.getId());
+        return max;
+    }
+
+    /**
+     * Builds the dense label image, with the same values as {@link EasyXT.Surfaces#getLabelsImage(ISurfacesPrx)}
+     *
+     * @return a label image, where each surface has the value id + 1
+     */
+    public ImagePlus rasterize() {
+        int bitDepth = SurfaceLabelExporter.getLabelBitDepth(getMaxId());
+        ImagePlus labels = IJ.createHyperStack(name + "-Labels", cal.xSize, cal.ySize, 1, cal.zSize, cal.tSize, bitDepth);
+        labels.setCalibration(cal);
+        for (SparseSurface s : surfaces) {
+            int[] runs = s.runs;
+            for (int r = 0; r < runs.length; r += 4) {
+                Object plane = labels.getStack().getPixels(labels.getStackIndex(1, runs[r] + 1, s.getTimeIndex() + 1));
+                fill(plane, runs[r + 1] * cal.xSize + runs[r + 2], runs[r + 3], s.getId() + 1);
+            }
+        }
+        labels.setDisplayRange(0, getMaxId() + 1);
+        return labels;
+    }
+
+    /**
+     * Builds a single plane of the dense label image
+     *
+     * @param z the slice, 0-based
+     * @param t the timepoint, 0-based
+     * @return a label plane, where each surface has the value id + 1
+     */
+    public ImageProcessor rasterize(int z, int t) {
+        int bitDepth = SurfaceLabelExporter.getLabelBitDepth(getMaxId());
+        ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(cal.xSize, cal.ySize)
+                : bitDepth == 16 ? new ShortProcessor(cal.xSize, cal.ySize)
+                : new FloatProcessor(cal.xSize, cal.ySize);
+        for (SparseSurface s : surfaces) {
+            if (s.getTimeIndex() != t || z < s.bounds[2] || z >= s.bounds[2] + s.bounds[5]) continue;
+            int[] runs = s.runs;
+            for (int r = 0; r < runs.length; r += 4) {
+                if (runs[r] == z) fill(ip.getPixels(), runs[r + 1] * cal.xSize + runs[r + 2], runs[r + 3], s.getId() + 1);
+            }
+        }
+        return ip;
+    }
+
+    private static void fill(Object plane, int from, int length, long value) {
+        if (plane instanceof byte[]) Arrays.fill((byte[]) plane, from, from + length, (byte) value);
+        else if (plane instanceof short[]) Arrays.fill((short[]) plane, from, from + length, (short) value);
+        else Arrays.fill((float[]) plane, from, from + length, (float) value);
+    }
+
+    /**
+     * A single surface, as runs of voxels along X sorted by z, y and x
+     */
+    public static class SparseSurface {
+        private final long id;
+        private final int timeIndex;
+        private final int[] bounds;
+        private final int[] runs;
+        private final long voxelCount;
+
+        SparseSurface(long id, int timeIndex, int[] bounds, int[] runs) {
+            this.id = id;
+            this.timeIndex = timeIndex;
+            this.bounds = bounds;
+            this.runs = runs;
+            long count = 0;
+            for (int r = 3; r < runs.length; r += 4) count += runs[r];
+            this.voxelCount = count;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getTimeIndex() {
+            return timeIndex;
+        }
+
+        /**
+         * @return a copy of the bounding box in dataset pixels: x, y, z, sizeX, sizeY, sizeZ
+         */
+        public int[] getBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * @return the number of runs
+         */
+        public int getRunCount() {
+            return runs.length / 4;
+        }
+
+        /**
+         * @return a copy of the runs, as consecutive z, y, x, length values
+         */
+        public int[] getRuns() {
+            return runs.clone();
+        }
+
+        /**
+         * @return the number of voxels in the surface
+         */
+        public long getVoxelCount() {
+            return voxelCount;
+        }
+
+        /**
+         * Counts the voxels shared with another surface, by merging the runs of both
+         *
+         * @param other another surface
+         * @return the number of voxels in both, 0 if they are not at the same timepoint
+         */
+        public long getOverlap(SparseSurface other) {
+            if (other.timeIndex != timeIndex) return 0;
+            int[] a = runs, b = other.runs;
+            long overlap = 0;
+            int i = 0, j = 0;
+            while (i < a.length && j < b.length) {
+                int order = compareRows(a, i, b, j);
+                if (order < 0) {
+                    i += 4;
+                } else if (order > 0) {
+                    j += 4;
+                } else {
+                    int aEnd = a[i + 2] + a[i + 3], bEnd = b[j + 2] + b[j + 3];
+                    overlap += Math.max(0, Math.min(aEnd, bEnd) - Math.max(a[i + 2], b[j + 2]));
+                    // Move on with the run that ends first
+                    if (aEnd <= bEnd) i += 4;
+                    else j += 4;
+                }
+            }
+            return overlap;
+        }
+
+        private static int compareRows(int[] a, int i, int[] b, int j) {
+            if (a[i] != b[j]) return Integer.compare(a[i], b[j]);
+            return Integer.compare(a[i + 1], b[j + 1]);
+        }
+
+        /**
+         * Measures the intensities of an image within the surface
+         *
+         * @param imp     an image with the same dimensions as the dataset the surfaces come from
+         * @param channel the channel to measure, 0-based
+         * @return sum, min, max and mean intensity of the voxels of the surface, NaN if it is empty
+         */
+        public double[] getIntensityStatistics(ImagePlus imp, int channel) {
+            double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            int width = imp.getWidth();
+            ImageProcessor ip = null;
+            int z = -1;
+            for (int r = 0; r < runs.length; r += 4) {
+                // Runs are sorted by z, so each plane is fetched once
+                if (runs[r] != z) {
+                    z = runs[r];
+                    ip = imp.getStack().getProcessor(imp.getStackIndex(channel + 1, z + 1, timeIndex + 1));
+                }
+                int offset = runs[r + 1] * width + runs[r + 2];
+                for (int x = 0; x < runs[r + 3]; x++) {
+                    float v = ip.getf(offset + x);
+                    sum += v;
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+            }
+            if (voxelCount == 0) return new double[]{0, Double.NaN, Double.NaN, Double.NaN};
+            return new double[]{sum, min, max, sum / voxelCount};
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import Imaris.ISurfacesPrx;
+import Imaris.tType;
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds surfaces to a Surfaces object from small masks, each covering only the bounding box of its object.
+ * <p>
+ * The amount of data sent scales with the size of the objects rather than with the size of the dataset. The mask
+ * datasets are built and filled in parallel on the transfer threads, a batch at a time, and then added one after the
+ * other so that the surfaces keep the order of the masks.
+ */
+class SurfaceCropUploader {
+
+    private SurfaceCropUploader() {
+    }
+
+    /**
+     * Adds one surface per mask
+     *
+     * @param surface    the Surfaces object to add to
+     * @param crops      binary 8-bit masks, with a single channel and timepoint
+     * @param extents    for each mask, its physical bounds: minX, minY, minZ, maxX, maxY, maxZ
+     * @param timepoints for each mask, the timepoint of its surface, 0-based
+     * @throws Error an Imaris Error
+     */
+    static void upload(ISurfacesPrx surface, List<ImagePlus> crops, List<float[]> extents, int[] timepoints) throws Error {
+        int n = crops.size();
+        int batchSize = Math.max(1, 2 * DatasetTransfer.getThreads());
+
+        TransferMonitor monitor = TransferMonitor.get();
+        TransferMonitor.Operation operation = monitor.begin("Adding " + n + " surfaces", n);
+        try {
+            for (int start = 0; start < n; start += batchSize) {
+                int end = Math.min(n, start + batchSize);
+                IDataSetPrx[] masks = new IDataSetPrx[end - start];
+                try {
+                    List<DatasetTransfer.Task> tasks = new ArrayList<>();
+                    for (int i = start; i < end; i++) {
+                        final int index = i;
+                        tasks.add(() -> masks[index - start] = createMask(crops.get(index), extents.get(index)));
+                    }
+                    DatasetTransfer.runAll(tasks);
+
+                    for (int i = start; i < end; i++) {
+                        surface.AddSurface(masks[i - start], timepoints[i]);
+                        monitor.step(operation);
+                    }
+                } finally {
+                    for (IDataSetPrx mask : masks) if (mask != null) mask.Dispose();
+                }
+            }
+        } finally {
+            monitor.end(operation);
+        }
+    }
+
+    /**
+     * Creates a dataset the size of the crop, placed at the given extents, holding 0 and 1
+     */
+    private static IDataSetPrx createMask(ImagePlus crop, float[] extents) throws Error {
+        if (crop.getBitDepth() != 8) {
+            throw new Error("Image Type Error", "Mask " + crop.getTitle() + " is not 8-bit", "");
+        }
+        IDataSetPrx mask = EasyXT.Utils.getImarisApp().GetFactory().CreateDataSet();
+        mask.Create(tType.eTypeUInt8, crop.getWidth(), crop.getHeight(), crop.getNSlices(), 1, 1);
+        mask.SetExtendMinX(extents[0]);
+        mask.SetExtendMinY(extents[1]);
+        mask.SetExtendMinZ(extents[2]);
+        mask.SetExtendMaxX(extents[3]);
+        mask.SetExtendMaxY(extents[4]);
+        mask.SetExtendMaxZ(extents[5]);
+        EasyXT.Surfaces.writeBinaryTimepoint(crop, 0, mask);
+        return mask;
+    }
+}
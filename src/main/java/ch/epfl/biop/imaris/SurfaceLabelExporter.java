@@ -0,0 +1,555 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import Imaris.cSurfaceLayout;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import inra.ijpb.binary.BinaryImages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Paints the masks of all surfaces into a label image, with several masks being transferred at once.
+ * <p>
+ * The label image is split into work units, one per timepoint, and into Z slabs when there are fewer timepoints than
+ * transfer threads. Each unit is handled by a single worker, which only requests the part of each mask that falls in
+ * its slab, and paints it directly into the planes it owns. Workers never write to the same plane, and the result is
+ * the same as painting the surfaces one after the other, in order.
+ * <p>
+ * Masks are painted from their raw bytes straight into the 8, 16 or 32-bit planes of the label image, whose type is
+ * chosen from the largest id beforehand (see {@link #getLabelBitDepth(long)}), with no intermediate image.
+ * <p>
+ * When there are many well separated surfaces, a faster {@link Mode#COMPONENTS} mode fetches the mask of all surfaces
+ * of a timepoint slab by slab, labels its 3D connected components locally and maps each component back to the surface
+ * whose bounding box contains it. When no box or several boxes contain a component, for example when touching surfaces
+ * merged into one component, the masks of the surfaces whose boxes intersect it are fetched over the component only,
+ * and the surface sharing the most voxels with it wins.
+ */
+public class SurfaceLabelExporter {
+
+    private static final Logger log = Logger.getLogger(SurfaceLabelExporter.class.getName());
+
+    /**
+     * How the label image is built
+     */
+    public enum Mode {
+        /**
+         * One mask per surface, exact even when surfaces touch or overlap
+         */
+        EXACT,
+        /**
+         * One mask per timepoint, split into connected components. Touching surfaces end up with the same label, the
+         * one of the surface sharing the most voxels with their merged component
+         */
+        COMPONENTS,
+        /**
+         * Components for timepoints with many surfaces, falling back to exact masks for a timepoint whenever its
+         * components do not match its surfaces one to one
+         */
+        AUTO
+    }
+
+    private static int autoThreshold = 100;
+
+    // Bytes held per voxel while labelling a timepoint: the mask, the float components and the labelling's own copy
+    private static final int COMPONENTS_BYTES_PER_VOXEL = 1 + 2 * 4;
+
+    // Size of the cells used to find the surfaces near a component, in pixels
+    private static final int GRID_CELL = 32;
+
+    /**
+     * Sets the number of surfaces in a timepoint from which {@link Mode#AUTO} tries connected components. Defaults to 100
+     *
+     * @param surfaces the number of surfaces per timepoint
+     */
+    public static void setAutoThreshold(int surfaces) {
+        autoThreshold = surfaces;
+    }
+
+    public static int getAutoThreshold() {
+        return autoThreshold;
+    }
+
+    private final SurfacesSnapshot snapshot;
+    private final ImagePlus labels;
+    private final Calibration cal;
+    private final Mode mode;
+
+    // Bounds of each surface in the pixels of the label image, and the surfaces of each timepoint
+    private int[][] bounds;
+    private List<List<Integer>> surfacesPerTimepoint;
+
+    SurfaceLabelExporter(SurfacesSnapshot snapshot, ImagePlus labels) {
+        this(snapshot, labels, Mode.EXACT);
+    }
+
+    SurfaceLabelExporter(SurfacesSnapshot snapshot, ImagePlus labels, Mode mode) {
+        this.snapshot = snapshot;
+        this.labels = labels;
+        this.cal = labels.getCalibration();
+        this.mode = mode;
+    }
+
+    /**
+     * Paints all surfaces, with the value id + 1 so that the surface with ID 0 is not background
+     *
+     * @throws Error an Imaris Error
+     */
+    void paint() throws Error {
+        int nt = labels.getNFrames();
+
+        // Bounds of each surface in the pixels of the label image, not clipped
+        int n = snapshot.size();
+        bounds = new int[n][];
+        surfacesPerTimepoint = new ArrayList<>();
+        for (int t = 0; t < nt; t++) surfacesPerTimepoint.add(new ArrayList<>());
+        for (int i = 0; i < n; i++) {
+            int t = snapshot.getTimeIndex(i);
+            if (t >= nt) continue;
+            bounds[i] = getBounds(EasyXT.Surfaces.adjustBounds(snapshot.getLayout(i), cal), cal);
+            surfacesPerTimepoint.get(t).add(i);
+        }
+
+        List<Integer> exact = new ArrayList<>();
+        List<Integer> components = new ArrayList<>();
+        for (int t = 0; t < nt; t++) {
+            int count = surfacesPerTimepoint.get(t).size();
+            if (count == 0) continue;
+            if (mode == Mode.COMPONENTS || (mode == Mode.AUTO && count >= autoThreshold)) components.add(t);
+            else exact.add(t);
+        }
+
+        if (!components.isEmpty()) exact.addAll(paintComponents(components));
+        if (!exact.isEmpty()) paintExact(exact);
+    }
+
+    /**
+     * Paints the given timepoints with one mask request per surface and Z slab
+     */
+    private void paintExact(List<Integer> timepoints) throws Error {
+        int nz = labels.getNSlices();
+        int nt = timepoints.size();
+
+        // Enough slabs to keep all the transfer threads busy
+        int nSlabs = Math.max(1, Math.min(nz, (2 * DatasetTransfer.getThreads() + nt - 1) / nt));
+        int slabSize = (nz + nSlabs - 1) / nSlabs;
+
+        TransferMonitor monitor = TransferMonitor.get();
+        TransferMonitor.Operation operation = monitor.begin("Exporting " + snapshot.size() + " surfaces", nt * ((nz + slabSize - 1) / slabSize));
+        try {
+            List<DatasetTransfer.Task> tasks = new ArrayList<>();
+            for (int t : timepoints) {
+                for (int zStart = 0; zStart < nz; zStart += slabSize) {
+                    final int ft = t, z0 = zStart, z1 = Math.min(nz, zStart + slabSize);
+                    List<Integer> surfaces = surfacesPerTimepoint.get(t);
+                    tasks.add(() -> {
+                        for (int i : surfaces) {
+                            paintSurface(i, bounds[i], ft, z0, z1);
+                        }
+                        monitor.step(operation);
+                    });
+                }
+            }
+            DatasetTransfer.runAll(tasks);
+        } finally {
+            monitor.end(operation);
+        }
+    }
+
+    /**
+     * Paints the given timepoints from their connected components, in parallel
+     *
+     * @return the timepoints that could not be matched one to one, and should be painted exactly (AUTO mode only)
+     */
+    private List<Integer> paintComponents(List<Integer> timepoints) throws Error {
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+
+        // Only label as many timepoints at once as fit in half of the free memory
+        long bytes = (long) labels.getWidth() * labels.getHeight() * labels.getNSlices() * COMPONENTS_BYTES_PER_VOXEL;
+        int parallel = (int) Math.max(1, Math.min(DatasetTransfer.getThreads(), MemoryPlanner.getAvailableHeap() / 2 / bytes));
+
+        TransferMonitor monitor = TransferMonitor.get();
+        TransferMonitor.Operation operation = monitor.begin("Labelling surface masks", timepoints.size());
+        try {
+            for (int from = 0; from < timepoints.size(); from += parallel) {
+                List<DatasetTransfer.Task> tasks = new ArrayList<>();
+                for (int t : timepoints.subList(from, Math.min(timepoints.size(), from + parallel))) {
+                    tasks.add(() -> {
+                        if (!paintComponents(t)) failed.add(t);
+                        monitor.step(operation);
+                    });
+                }
+                DatasetTransfer.runAll(tasks);
+            }
+        } finally {
+            monitor.end(operation);
+        }
+
+        if (!failed.isEmpty()) {
+            log.info(failed.size() + " timepoint(s) have touching surfaces, exporting them surface by surface");
+        }
+        return failed;
+    }
+
+    /**
+     * Fetches the mask of all surfaces of a timepoint, labels its connected components and paints them with the id of
+     * their surface
+     *
+     * @return false if the components do not match the surfaces one to one in AUTO mode, in which case nothing is painted
+     */
+    private boolean paintComponents(int t) throws Error {
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        int nz = labels.getNSlices();
+
+        // Slab by slab, straight into the planes of the binary stack
+        IDataSetPrx mask = EasyXT.Surfaces.getMaskDataset(snapshot.getSurface(), 1.0, t);
+        Object[] planes = new Object[nz];
+        try {
+            int bitDepth = EasyXT.Dataset.getBitDepth(mask);
+            DatasetTransfer.read(mask, bitDepth, 0, 0, 0, width, height, nz, new int[]{0}, new int[]{0},
+                    (c, z, tt, pixels) -> planes[z] = pixels);
+        } finally {
+            mask.Dispose();
+        }
+        ImageStack binary = new ImageStack(width, height);
+        for (Object plane : planes) binary.addSlice("", plane);
+
+        // 32-bit labels, as there may be more components than surfaces
+        ImageStack components = BinaryImages.componentsLabeling(binary, 26, 32);
+        int[][] boxes = getComponentBounds(components);
+
+        long[] lut = matchComponents(components, boxes, surfacesPerTimepoint.get(t));
+        if (lut == null) return false;
+
+        for (int z = 0; z < nz; z++) {
+            Object plane = labels.getStack().getPixels(labels.getStackIndex(1, z + 1, t + 1));
+            paintComponentPlane((float[]) components.getPixels(z + 1), plane, lut);
+        }
+        return true;
+    }
+
+    /**
+     * Computes the bounds of each component, as x, y, z, sizeX, sizeY, sizeZ. Index 0 is the background
+     */
+    private static int[][] getComponentBounds(ImageStack components) {
+        int width = components.getWidth();
+        int nz = components.getSize();
+        List<int[]> minMax = new ArrayList<>();
+        minMax.add(null);
+
+        for (int z = 0; z < nz; z++) {
+            float[] plane = (float[]) components.getPixels(z + 1);
+            for (int i = 0; i < plane.length; i++) {
+                int k = (int) plane[i];
+                if (k == 0) continue;
+                while (minMax.size() <= k) minMax.add(null);
+                int x = i % width, y = i / width;
+                int[] m = minMax.get(k);
+                if (m == null) {
+                    minMax.set(k, new int[]{x, y, z, x, y, z});
+                } else {
+                    m[0] = Math.min(m[0], x); m[1] = Math.min(m[1], y); m[2] = Math.min(m[2], z);
+                    m[3] = Math.max(m[3], x); m[4] = Math.max(m[4], y); m[5] = Math.max(m[5], z);
+                }
+            }
+        }
+
+        int[][] boxes = new int[minMax.size()][];
+        for (int k = 1; k < boxes.length; k++) {
+            int[] m = minMax.get(k);
+            if (m != null) boxes[k] = new int[]{m[0], m[1], m[2], m[3] - m[0] + 1, m[4] - m[1] + 1, m[5] - m[2] + 1};
+        }
+        return boxes;
+    }
+
+    /**
+     * Maps each component to the surface whose bounding box contains it. When no box or several boxes contain a
+     * component, the surface whose mask shares the most voxels with it wins among those whose boxes intersect it,
+     * except in AUTO mode where the timepoint is painted exactly
+     *
+     * @return the label (id + 1) of each component, 0 if unmatched, or null if the match is not one to one in AUTO mode
+     */
+    private long[] matchComponents(ImageStack components, int[][] boxes, List<Integer> surfaces) throws Error {
+        // Surfaces by the grid cells their bounding box covers, so that each component is only compared to its neighbours
+        Map<Long, List<Integer>> grid = new HashMap<>();
+        for (int i : surfaces) {
+            int[] b = bounds[i];
+            for (int cz = b[2] / GRID_CELL; cz <= (b[2] + b[5] - 1) / GRID_CELL; cz++)
+                for (int cy = b[1] / GRID_CELL; cy <= (b[1] + b[4] - 1) / GRID_CELL; cy++)
+                    for (int cx = b[0] / GRID_CELL; cx <= (b[0] + b[3] - 1) / GRID_CELL; cx++)
+                        grid.computeIfAbsent(cellKey(cx, cy, cz), k -> new ArrayList<>()).add(i);
+        }
+
+        long[] lut = new long[boxes.length];
+        Set<Integer> matched = new HashSet<>();
+        int unmatched = 0;
+        for (int k = 1; k < boxes.length; k++) {
+            int[] c = boxes[k];
+            if (c == null) continue;
+            Set<Integer> candidates = new LinkedHashSet<>();
+            for (int cz = c[2] / GRID_CELL; cz <= (c[2] + c[5] - 1) / GRID_CELL; cz++)
+                for (int cy = c[1] / GRID_CELL; cy <= (c[1] + c[4] - 1) / GRID_CELL; cy++)
+                    for (int cx = c[0] / GRID_CELL; cx <= (c[0] + c[3] - 1) / GRID_CELL; cx++)
+                        for (int i : grid.getOrDefault(cellKey(cx, cy, cz), Collections.emptyList())) {
+                            if (intersects(bounds[i], c)) candidates.add(i);
+                        }
+            List<Integer> containing = new ArrayList<>();
+            for (int i : candidates) if (contains(bounds[i], c)) containing.add(i);
+
+            int best = -1;
+            if (containing.size() == 1) best = containing.get(0);
+            else if (!candidates.isEmpty() && mode != Mode.AUTO) best = getMostOverlapping(components, k, c, candidates);
+
+            if (best < 0) {
+                if (mode == Mode.AUTO) return null;
+                unmatched++;
+                continue;
+            }
+            // A surface made of several pieces gives several components
+            if (!matched.add(best) && mode == Mode.AUTO) return null;
+            lut[k] = snapshot.getId(best) + 1;
+        }
+
+        if (mode == Mode.AUTO && matched.size() != surfaces.size()) return null;
+        if (unmatched > 0 || matched.size() != surfaces.size()) {
+            log.warning(surfaces.size() + " surfaces but " + (boxes.length - 1) + " components, " + unmatched
+                    + " of which could not be matched to a surface");
+        }
+        return lut;
+    }
+
+    private static long cellKey(int cx, int cy, int cz) {
+        return ((long) cz << 42) | ((long) (cy & 0x1FFFFF) << 21) | (cx & 0x1FFFFF);
+    }
+
+    /**
+     * Whether two boxes given as x, y, z, sizeX, sizeY, sizeZ share at least one pixel, allowing one pixel of rounding
+     */
+    private static boolean intersects(int[] a, int[] b) {
+        for (int d = 0; d < 3; d++) {
+            if (a[d] + a[d + 3] + 1 <= b[d] || b[d] + b[d + 3] + 1 <= a[d]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a box contains another, both given as x, y, z, sizeX, sizeY, sizeZ, allowing one pixel of rounding
+     */
+    private static boolean contains(int[] outer, int[] inner) {
+        for (int d = 0; d < 3; d++) {
+            if (inner[d] < outer[d] - 1 || inner[d] + inner[d + 3] > outer[d] + outer[d + 3] + 1) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the mask of each candidate surface over the bounds of a component, and counts the voxels they share
+     *
+     * @return the candidate sharing the most voxels with the component, or -1 if none does
+     */
+    private int getMostOverlapping(ImageStack components, int k, int[] c, Set<Integer> candidates) throws Error {
+        int width = components.getWidth();
+        int best = -1;
+        long bestCount = 0;
+        for (int i : candidates) {
+            Object block = readSingleMask(i, c[0], c[1], c[2], c[3], c[4], c[5]);
+            long count = 0;
+            for (int z = 0; z < c[5]; z++) {
+                float[] plane = (float[]) components.getPixels(c[2] + z + 1);
+                for (int y = 0; y < c[4]; y++) {
+                    int offset = (z * c[4] + y) * c[3];
+                    int row = (c[1] + y) * width + c[0];
+                    for (int x = 0; x < c[3]; x++) {
+                        if ((int) plane[row + x] == k && isSet(block, offset + x)) count++;
+                    }
+                }
+            }
+            if (count > bestCount) {
+                bestCount = count;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes the label of each component into a label plane
+     */
+    private static void paintComponentPlane(float[] components, Object plane, long[] lut) {
+        if (plane instanceof byte[]) {
+            byte[] p = (byte[]) plane;
+            for (int i = 0; i < p.length; i++) {
+                long v = lut[(int) components[i]];
+                if (v != 0) p[i] = (byte) v;
+            }
+        } else if (plane instanceof short[]) {
+            short[] p = (short[]) plane;
+            for (int i = 0; i < p.length; i++) {
+                long v = lut[(int) components[i]];
+                if (v != 0) p[i] = (short) v;
+            }
+        } else {
+            float[] p = (float[]) plane;
+            for (int i = 0; i < p.length; i++) {
+                long v = lut[(int) components[i]];
+                if (v != 0) p[i] = v;
+            }
+        }
+    }
+
+    /**
+     * Requests the part of a surface mask between slices z0 and z1 and paints it
+     */
+    private void paintSurface(int index, int[] b, int t, int z0, int z1) throws Error {
+        // b: x, y, z, sizeX, sizeY, sizeZ in label image pixels, not clipped yet
+        int zFrom = Math.max(b[2], z0);
+        int zTo = Math.min(b[2] + b[5], z1);
+        if (zFrom >= zTo || b[3] < 1 || b[4] < 1) return;
+
+        // Sub-layout covering only our slices
+        Object block = readSingleMask(index, b[0], b[1], zFrom, b[3], b[4], zTo - zFrom);
+        paintBlock(block, b[0], b[1], zFrom, b[3], b[4], zTo - zFrom, t, snapshot.getId(index) + 1);
+    }
+
+    /**
+     * Requests the mask of a single surface over a box given in label image pixels
+     */
+    private Object readSingleMask(int index, int x, int y, int z, int w, int h, int d) throws Error {
+        cSurfaceLayout layout = new cSurfaceLayout();
+        layout.mExtendMinX = (float) ((cal.xOrigin + x) * cal.pixelWidth);
+        layout.mExtendMinY = (float) ((cal.yOrigin + y) * cal.pixelHeight);
+        layout.mExtendMinZ = (float) ((cal.zOrigin + z) * cal.pixelDepth);
+        layout.mExtendMaxX = (float) ((cal.xOrigin + x + w) * cal.pixelWidth);
+        layout.mExtendMaxY = (float) ((cal.yOrigin + y + h) * cal.pixelHeight);
+        layout.mExtendMaxZ = (float) ((cal.zOrigin + z + d) * cal.pixelDepth);
+        layout.mSizeX = w;
+        layout.mSizeY = h;
+        layout.mSizeZ = d;
+
+        IDataSetPrx mask = snapshot.getSurface().GetSingleMask(index,
+                layout.mExtendMinX, layout.mExtendMinY, layout.mExtendMinZ,
+                layout.mExtendMaxX, layout.mExtendMaxY, layout.mExtendMaxZ,
+                layout.mSizeX, layout.mSizeY, layout.mSizeZ);
+        try {
+            int bitDepth = EasyXT.Dataset.getBitDepth(mask);
+            return DatasetTransfer.readBlock(mask, bitDepth, 0, 0, 0, 0, 0, w, h, d);
+        } finally {
+            mask.Dispose();
+        }
+    }
+
+    /**
+     * Writes the label value wherever the mask is not zero, clipping to the label image
+     */
+    private void paintBlock(Object block, int x, int y, int z, int w, int h, int d, int t, long value) {
+        ImageStack stack = labels.getStack();
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        int xFrom = Math.max(0, x), xTo = Math.min(width, x + w);
+        int yFrom = Math.max(0, y), yTo = Math.min(height, y + h);
+        if (xFrom >= xTo) return;
+
+        for (int k = 0; k < d; k++) {
+            Object plane = stack.getPixels(labels.getStackIndex(1, z + k + 1, t + 1));
+            int offset = k * w * h;
+            for (int yy = yFrom; yy < yTo; yy++) {
+                paintRow(block, offset + (yy - y) * w + (xFrom - x), plane, yy * width + xFrom, xTo - xFrom, value);
+            }
+        }
+    }
+
+    /**
+     * Paints n pixels of a row of a label plane, straight from the raw mask, without any intermediate array
+     */
+    private static void paintRow(Object mask, int maskOffset, Object plane, int planeOffset, int n, long value) {
+        if (!(mask instanceof byte[])) {
+            // Masks are 8-bit, but do not fail on other types
+            for (int i = 0; i < n; i++) {
+                if (isSet(mask, maskOffset + i)) setLabel(plane, planeOffset + i, value);
+            }
+            return;
+        }
+
+        byte[] m = (byte[]) mask;
+        if (plane instanceof byte[]) {
+            byte[] p = (byte[]) plane;
+            byte v = (byte) value;
+            for (int i = 0; i < n; i++) if (m[maskOffset + i] != 0) p[planeOffset + i] = v;
+        } else if (plane instanceof short[]) {
+            short[] p = (short[]) plane;
+            short v = (short) value;
+            for (int i = 0; i < n; i++) if (m[maskOffset + i] != 0) p[planeOffset + i] = v;
+        } else {
+            float[] p = (float[]) plane;
+            float v = (float) value;
+            for (int i = 0; i < n; i++) if (m[maskOffset + i] != 0) p[planeOffset + i] = v;
+        }
+    }
+
+    private static boolean isSet(Object block, int i) {
+        if (block instanceof byte[]) return ((byte[]) block)[i] != 0;
+        if (block instanceof short[]) return ((short[]) block)[i] != 0;
+        return ((float[]) block)[i] != 0;
+    }
+
+    private static void setLabel(Object plane, int i, long value) {
+        if (plane instanceof byte[]) ((byte[]) plane)[i] = (byte) value;
+        else if (plane instanceof short[]) ((short[]) plane)[i] = (short) value;
+        else ((float[]) plane)[i] = value;
+    }
+
+    /**
+     * Returns the smallest bit depth that can hold all labels, knowing that labels are id + 1
+     *
+     * @param maxId the largest surface id
+     * @return 8, 16 or 32
+     */
+    static int getLabelBitDepth(long maxId) {
+        if (maxId + 1 < 256) return 8;
+        if (maxId + 1 < 65536) return 16;
+        return 32;
+    }
+
+    /**
+     * Converts an adjusted layout into pixel bounds of the label image: x, y, z, sizeX, sizeY, sizeZ
+     */
+    static int[] getBounds(cSurfaceLayout layout, Calibration cal) {
+        int x = (int) Math.round(layout.mExtendMinX / cal.pixelWidth - cal.xOrigin);
+        int y = (int) Math.round(layout.mExtendMinY / cal.pixelHeight - cal.yOrigin);
+        int z = (int) Math.round(layout.mExtendMinZ / cal.pixelDepth - cal.zOrigin);
+        return new int[]{x, y, z, layout.mSizeX, layout.mSizeY, layout.mSizeZ};
+    }
+}
@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.ISurfacesPrx;
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the masks of several surfaces at once, as given by
+ * {@link EasyXT.Surfaces#getSurfaceIdAsMask(SurfacesSnapshot, long)}, and keeps them in a memory-bounded cache.
+ * <p>
+ * Ids are resolved through the primitive id to index map of a {@link SurfacesSnapshot}, and missing masks are
+ * requested concurrently on the transfer threads. Masks are kept until the cache goes over its memory budget, least
+ * recently used first, so asking again for the same surface does not go back to Imaris. Callers get copies, which they
+ * can modify freely.
+ * <p>
+ * Like the snapshot, the cache is not updated if the surfaces change in Imaris, make a new one in that case.
+ */
+public class SurfaceMaskCache {
+
+    private final SurfacesSnapshot snapshot;
+    private final long maxBytes;
+
+    // Least recently used first
+    private final LinkedHashMap<Long, ImagePlus> masks = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * Creates a cache for the given surfaces, holding up to 256 MB of masks
+     *
+     * @param surface the surfaces to extract masks from
+     * @throws Error an Imaris Error
+     */
+    public SurfaceMaskCache(ISurfacesPrx surface) throws Error {
+        this(new SurfacesSnapshot(surface), 256L * 1024 * 1024);
+    }
+
+    /**
+     * Creates a cache for the surfaces of a snapshot
+     *
+     * @param snapshot the metadata of the surfaces to extract masks from
+     * @param maxBytes the memory budget of the cache, in bytes
+     */
+    public SurfaceMaskCache(SurfacesSnapshot snapshot, long maxBytes) {
+        this.snapshot = snapshot;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param id the id of a surface
+     * @return a copy of its mask, from the cache if possible
+     * @throws Error an Imaris Error, also if there is no surface with this id
+     */
+    public ImagePlus get(long id) throws Error {
+        return get(new long[]{id})[0];
+    }
+
+    /**
+     * Returns the masks of several surfaces, only requesting the ones that are not cached yet, in parallel
+     *
+     * @param ids the ids of the surfaces, possibly repeated
+     * @return a copy of the mask of each surface, in the order of the ids
+     * @throws Error an Imaris Error, also if there is no surface with one of the ids
+     */
+    public ImagePlus[] get(long[] ids) throws Error {
+        return get(ids, true);
+    }
+
+    /**
+     * Same as {@link #get(long[])}, optionally giving the cached masks themselves rather than copies
+     */
+    ImagePlus[] get(long[] ids, boolean copy) throws Error {
+        ImagePlus[] result = new ImagePlus[ids.length];
+
+        // Resolve everything before going to Imaris, so that unknown ids fail early
+        List<Long> missing = new ArrayList<>();
+        Map<Long, Integer> missingIndex = new HashMap<>();
+        synchronized (this) {
+            for (int i = 0; i < ids.length; i++) {
+                if (snapshot.getIndex(ids[i]) < 0) {
+                    throw new Error("Surface not found", "There is no surface with ID " + ids[i],
+                            EasyXT.Scene.getName(snapshot.getSurface()));
+                }
+                result[i] = masks.get(ids[i]);
+                if (result[i] == null && !missingIndex.containsKey(ids[i])) {
+                    missingIndex.put(ids[i], missing.size());
+                    missing.add(ids[i]);
+                }
+            }
+        }
+
+        ImagePlus[] fetched = new ImagePlus[missing.size()];
+        List<DatasetTransfer.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < missing.size(); i++) {
+            final int index = i;
+            tasks.add(() -> fetched[index] = EasyXT.Surfaces.getSurfaceIdAsMask(snapshot, missing.get(index)));
+        }
+        DatasetTransfer.runAll(tasks);
+
+        synchronized (this) {
+            for (int i = 0; i < fetched.length; i++) put(missing.get(i), fetched[i]);
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            ImagePlus mask = result[i] != null ? result[i] : fetched[missingIndex.get(ids[i])];
+            result[i] = copy ? copy(mask) : mask;
+        }
+        return result;
+    }
+
+    private void put(long id, ImagePlus mask) {
+        ImagePlus previous = masks.put(id, mask);
+        if (previous != null) bytes -= getBytes(previous);
+        bytes += getBytes(mask);
+
+        // Evict the least recently used masks, but always keep the last one
+        Iterator<Map.Entry<Long, ImagePlus>> entries = masks.entrySet().iterator();
+        while (bytes > maxBytes && masks.size() > 1 && entries.hasNext()) {
+            Map.Entry<Long, ImagePlus> entry = entries.next();
+            if (entry.getKey() == id) continue;
+            bytes -= getBytes(entry.getValue());
+            entries.remove();
+        }
+    }
+
+    private static ImagePlus copy(ImagePlus mask) {
+        ImagePlus copy = mask.duplicate();
+        copy.setTitle(mask.getTitle());
+        copy.setProperty("Time Index", mask.getProperty("Time Index"));
+        return copy;
+    }
+
+    private static long getBytes(ImagePlus imp) {
+        return (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * (imp.getBitDepth() / 8);
+    }
+
+    /**
+     * @return the number of bytes currently held by the cache
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drops all cached masks
+     */
+    public synchronized void clear() {
+        masks.clear();
+        bytes = 0;
+    }
+
+    public SurfacesSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.ISurfacesPrx;
+import Imaris.cSurfaceLayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of the metadata of all the surfaces in a Surfaces object: their ids, time indices and layouts.
+ * <p>
+ * The Imaris API only gives time indices and layouts one surface at a time, and ids as a whole array, so asking for
+ * them surface by surface costs one or more calls each time, which becomes quadratic when ids are looked up in a loop.
+ * The snapshot fetches the ids once, and each time index and layout at most once, on demand or all at once in
+ * parallel with {@link #prefetch()}. Ids are mapped to indices with a sorted primitive array instead of a boxed list.
+ * <p>
+ * The snapshot is not updated if surfaces are added or removed afterwards, take a new one in that case.
+ */
+public class SurfacesSnapshot {
+
+    // Number of surfaces whose metadata are fetched by each task of prefetch()
+    private static final int PREFETCH_BATCH = 256;
+
+    private final ISurfacesPrx surface;
+    private final long[] ids;
+
+    // Ids in increasing order, with the matching surface indices, to look up indices by id
+    private final long[] sortedIds;
+    private final int[] sortedIndices;
+
+    private final int[] timeIndices;
+    private final cSurfaceLayout[] layouts;
+
+    /**
+     * Takes a snapshot of the surfaces, fetching only the ids for now
+     *
+     * @param surface the surfaces to describe
+     * @throws Error an Imaris Error
+     */
+    public SurfacesSnapshot(ISurfacesPrx surface) throws Error {
+        this.surface = surface;
+        this.ids = surface.GetIds();
+
+        int n = ids.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+        sortedIds = new long[n];
+        sortedIndices = new int[n];
+        for (int i = 0; i < n; i++) {
+            sortedIndices[i] = order[i];
+            sortedIds[i] = ids[order[i]];
+        }
+
+        timeIndices = new int[n];
+        Arrays.fill(timeIndices, -1);
+        layouts = new cSurfaceLayout[n];
+    }
+
+    /**
+     * Fetches the time indices and layouts of all surfaces, several at a time on the transfer threads
+     * (see {@link DatasetTransfer#setThreads(int)})
+     *
+     * @return this snapshot
+     * @throws Error an Imaris Error
+     */
+    public SurfacesSnapshot prefetch() throws Error {
+        List<DatasetTransfer.Task> tasks = new ArrayList<>();
+        for (int start = 0; start < ids.length; start += PREFETCH_BATCH) {
+            final int from = start;
+            final int to = Math.min(ids.length, start + PREFETCH_BATCH);
+            tasks.add(() -> {
+                for (int i = from; i < to; i++) {
+                    getTimeIndex(i);
+                    getLayoutInternal(i);
+                }
+            });
+        }
+        DatasetTransfer.runAll(tasks);
+        return this;
+    }
+
+    public ISurfacesPrx getSurface() {
+        return surface;
+    }
+
+    /**
+     * @return the number of surfaces
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param index the index of a surface, 0-based
+     * @return its id
+     */
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @return a copy of the ids of all surfaces, by index
+     */
+    public long[] getIds() {
+        return ids.clone();
+    }
+
+    /**
+     * @return the largest id, or -1 if there are no surfaces
+     */
+    public long getMaxId() {
+        return sortedIds.length == 0 ? -1 : sortedIds[sortedIds.length - 1];
+    }
+
+    /**
+     * @param id the id of a surface
+     * @return its index, or -1 if there is no surface with this id
+     */
+    public int getIndex(long id) {
+        int position = Arrays.binarySearch(sortedIds, id);
+        return position < 0 ? -1 : sortedIndices[position];
+    }
+
+    /**
+     * @param index the index of a surface, 0-based
+     * @return its timepoint, 0-based
+     * @throws Error an Imaris Error
+     */
+    public int getTimeIndex(int index) throws Error {
+        // Ints are written atomically, so at worst two threads fetch the same value
+        int t = timeIndices[index];
+        if (t < 0) {
+            t = surface.GetTimeIndex(index);
+            timeIndices[index] = t;
+        }
+        return t;
+    }
+
+    /**
+     * @param index the index of a surface, 0-based
+     * @return a copy of its layout, which can be modified
+     * @throws Error an Imaris Error
+     */
+    public cSurfaceLayout getLayout(int index) throws Error {
+        return getLayoutInternal(index).clone();
+    }
+
+    private cSurfaceLayout getLayoutInternal(int index) throws Error {
+        cSurfaceLayout layout = layouts[index];
+        if (layout == null) {
+            layout = surface.GetSurfaceDataLayout(index);
+            layouts[index] = layout;
+        }
+        return layout;
+    }
+}
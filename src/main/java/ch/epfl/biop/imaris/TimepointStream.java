@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import ij.ImagePlus;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Streams a time-lapse from Imaris one timepoint at a time, as calibrated 3D ImagePlus, while the next timepoints are
+ * already being read in the background. Processing and transfer overlap, and only the frame being processed and the
+ * prefetched ones are held in memory, instead of the whole movie.
+ * <p>
+ * The stream follows the selection of a {@link DatasetQuery} (region, channels, timepoints, downsampling), and can
+ * optionally give one image per channel and timepoint.
+ * <pre>
+ * try (TimepointStream frames = EasyXT.Dataset.streamTimepoints(dataset)) {
+ *     for (ImagePlus frame : frames) {
+ *         // process the frame
+ *     }
+ * }
+ * </pre>
+ * With {@link #writeTo(IDataSetPrx, Function)}, results are sent back to Imaris by another thread, so reading,
+ * processing and writing all run at the same time, each stage being separated by a bounded queue.
+ */
+public class TimepointStream implements Iterable<ImagePlus>, Iterator<ImagePlus>, AutoCloseable {
+
+    /**
+     * Name of the ImagePlus property holding the 0-based timepoint of a frame
+     */
+    public static final String TIMEPOINT = "EasyXT.Timepoint";
+
+    /**
+     * Name of the ImagePlus property holding the 0-based channel of a frame, when streaming per channel
+     */
+    public static final String CHANNEL = "EasyXT.Channel";
+
+    // Marks the end of the results given to the writer
+    private static final Object END = new Object();
+
+    private final DatasetQuery query;
+    private final int[] channels;
+    private final int[] timepoints;
+    private final boolean perChannel;
+    private final Prefetcher<ImagePlus> frames;
+
+    /**
+     * Starts streaming the timepoints of a selection
+     *
+     * @param query      the selection to stream, which is copied and left unchanged
+     * @param perChannel true to give one image per channel and timepoint, false for one image per timepoint
+     * @param prefetch   how many frames are read in advance, at least 1
+     */
+    public TimepointStream(DatasetQuery query, boolean perChannel, int prefetch) {
+        this.query = query.copy();
+        this.channels = query.getSelectedChannels();
+        this.timepoints = query.getSelectedTimepoints();
+        this.perChannel = perChannel;
+        this.frames = new Prefetcher<>("EasyXT-TimepointReader", prefetch, this::readFrames);
+    }
+
+    /**
+     * Starts streaming all timepoints of a dataset, one image per timepoint, one timepoint ahead
+     *
+     * @param dataset the dataset to stream
+     * @throws Error an Imaris Error
+     */
+    public TimepointStream(IDataSetPrx dataset) throws Error {
+        this(new DatasetQuery(dataset), false, 1);
+    }
+
+    /**
+     * @return the number of images this stream gives
+     */
+    public int size() {
+        return perChannel ? timepoints.length * channels.length : timepoints.length;
+    }
+
+    private void readFrames(Prefetcher<ImagePlus> sink) throws Error, InterruptedException {
+        for (int t : timepoints) {
+            if (perChannel) {
+                for (int c : channels) {
+                    ImagePlus frame = query.copy().selectTimepoint(t).selectChannel(c).get();
+                    frame.setProperty(CHANNEL, c);
+                    put(sink, frame, t);
+                }
+            } else {
+                put(sink, query.copy().selectTimepoint(t).get(), t);
+            }
+            if (sink.isClosed()) return;
+        }
+    }
+
+    private static void put(Prefetcher<ImagePlus> sink, ImagePlus frame, int t) throws InterruptedException {
+        frame.setProperty(TIMEPOINT, t);
+        frame.setTitle(frame.getTitle() + "-t" + t);
+        sink.put(frame);
+    }
+
+    @Override
+    public Iterator<ImagePlus> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return frames.hasNext();
+    }
+
+    @Override
+    public ImagePlus next() {
+        return frames.next();
+    }
+
+    /**
+     * Processes each frame and writes the result to a dataset, at the position it was read from. Writing happens on
+     * another thread, with at most one result waiting to be written. Results with a different bit depth than the
+     * dataset are converted while they are sent, keeping values. Streams of downsampled selections cannot be written
+     * back, as results would not be at the scale of the dataset
+     *
+     * @param target    the dataset to write to, for example the source dataset or a clone of it
+     * @param processor turns a frame into a result with the same size, or null to skip writing it
+     * @throws Error an Imaris Error, from reading or from writing, or if the selection is downsampled
+     */
+    public void writeTo(IDataSetPrx target, Function<ImagePlus, ImagePlus> processor) throws Error {
+        if (query.isDownsampled()) {
+            throw new Error("Downsampled Selection", "Downsampled frames cannot be written back to a dataset",
+                    "Stream a selection at full resolution to use writeTo()");
+        }
+        int bitDepth = EasyXT.Dataset.getBitDepth(target);
+        int[] origin = query.getOrigin();
+        BlockingQueue<Object> results = new ArrayBlockingQueue<>(1);
+        AtomicReference<Throwable> writeError = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            try {
+                Object item;
+                while ((item = results.take()) != END) {
+                    ImagePlus result = (ImagePlus) item;
+                    int t = (Integer) result.getProperty(TIMEPOINT);
+                    Object channelProperty = result.getProperty(CHANNEL);
+                    int[] targetChannels = channelProperty != null ? new int[]{(Integer) channelProperty} : channels;
+                    DatasetTransfer.write(target, bitDepth, origin[0], origin[1], origin[2], result.getWidth(), result.getHeight(),
+                            result.getNSlices(), targetChannels, new int[]{t}, EasyXT.Utils.planeSupplier(result, 0),
+                            PixelConverter.clamp());
+                }
+            } catch (InterruptedException e) {
+                // Stopped by the caller
+            } catch (Throwable e) {
+                // Also out of memory errors, so that the caller never believes all results were written
+                writeError.set(e);
+            }
+        }, "EasyXT-TimepointWriter");
+        writer.setDaemon(true);
+        writer.start();
+
+        try {
+            while (hasNext() && writeError.get() == null) {
+                ImagePlus frame = next();
+                ImagePlus result = processor.apply(frame);
+                if (result == null) continue;
+                // Keep track of where the result goes
+                result.setProperty(TIMEPOINT, frame.getProperty(TIMEPOINT));
+                result.setProperty(CHANNEL, frame.getProperty(CHANNEL));
+                offer(results, result, writer);
+            }
+            offer(results, END, writer);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Transfer Interrupted", "Streaming timepoints was interrupted", "");
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        } finally {
+            // Never leave the writer waiting for results, whatever the processor threw
+            writer.interrupt();
+        }
+
+        Throwable error = writeError.get();
+        if (error instanceof Error) throw (Error) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof java.lang.Error) throw (java.lang.Error) error;
+        if (error != null) throw new IllegalStateException("Writing to Imaris failed: " + error, error);
+    }
+
+    /**
+     * Waits for room in the queue, unless the thread emptying it has stopped
+     */
+    private static void offer(BlockingQueue<Object> queue, Object item, Thread consumer) throws InterruptedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (!consumer.isAlive()) return;
+        }
+    }
+
+    /**
+     * Stops reading ahead. Frames already read are dropped
+     */
+    @Override
+    public void close() {
+        frames.close();
+    }
+}
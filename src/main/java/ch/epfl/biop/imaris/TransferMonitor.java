@@ -0,0 +1,319 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.imaris;
+
+import Imaris.Error;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Reports the progress and throughput of long transfers with Imaris, and allows to cancel them.
+ * <p>
+ * Every sub-volume read or written through {@link DatasetTransfer} is counted as one call, with its size and latency,
+ * so that pipelines which are limited by the number of calls rather than by the amount of data can be spotted.
+ * Long operations (reading or writing datasets, exporting labels or spots) report their progress in steps.
+ * <p>
+ * Listeners are notified at most every {@link #setNotificationInterval(long)} milliseconds, and once at the end of
+ * each operation. Cancellation is cooperative: after {@link #cancel()}, the running operation stops at the next step
+ * and throws an {@link Error}.
+ * <p>
+ * Operations can be nested, for example the per-surface transfers of a label export. Only the outermost operation
+ * reports steps, while the calls and bytes of all its nested operations are counted. Nesting is tracked per thread,
+ * and handed over to the transfer worker threads, so that operations started at the same time from unrelated threads
+ * keep their own progress and cancellation. The getters and the listeners report the most recently started one.
+ */
+public class TransferMonitor {
+
+    private static final Logger log = Logger.getLogger(TransferMonitor.class.getName());
+
+    /**
+     * Receives progress updates, on the thread running the transfer or on a transfer worker thread
+     */
+    public interface Listener {
+        void progress(TransferMonitor monitor);
+    }
+
+    /**
+     * An operation started with {@link #begin(String, int)}. Nested operations count into their outermost operation
+     */
+    static final class Operation {
+        private final Operation parent;
+        private final Operation root;
+        private final String name;
+        private final int total;
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong callNanos = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+        private volatile boolean cancelled;
+
+        private Operation(Operation parent, String name, int total) {
+            this.parent = parent;
+            this.root = parent == null ? this : parent.root;
+            this.name = name;
+            this.total = total;
+        }
+    }
+
+    private static final TransferMonitor instance = new TransferMonitor();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Operation> current = new ThreadLocal<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong lastNotification = new AtomicLong();
+
+    // The most recently started outermost operation, the one reported and cancelled
+    private volatile Operation shown;
+    private volatile long notificationInterval = 200;
+
+    private TransferMonitor() {
+    }
+
+    /**
+     * @return the monitor shared by all transfers
+     */
+    public static TransferMonitor get() {
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sets the minimum time between two notifications of the listeners, in milliseconds. Defaults to 200
+     *
+     * @param millis the interval, 0 to notify at every step
+     */
+    public void setNotificationInterval(long millis) {
+        notificationInterval = millis;
+    }
+
+    /**
+     * Requests the running operation to stop as soon as possible. Other operations running at the same time from
+     * other threads are not affected
+     */
+    public void cancel() {
+        Operation operation = shown;
+        if (operation != null && operation.endNanos == 0) {
+            log.warning("Cancelling " + operation.name);
+            operation.cancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        Operation operation = shown;
+        return operation != null && operation.cancelled;
+    }
+
+    /**
+     * Starts an operation, nested in the operation running on this thread if any. Must be paired with
+     * {@link #end(Operation)} in a finally block, on the same thread
+     *
+     * @param name  the name of the operation, shown in the status bar
+     * @param steps the number of steps of the operation
+     * @return the operation, to give to {@link #step(Operation)} and {@link #end(Operation)}
+     * @throws Error if the enclosing operation was cancelled
+     */
+    Operation begin(String name, int steps) throws Error {
+        Operation parent = current.get();
+        Operation operation = new Operation(parent, name, steps);
+        checkCancelled(operation);
+        current.set(operation);
+        if (parent == null) {
+            running.incrementAndGet();
+            shown = operation;
+        }
+        return operation;
+    }
+
+    /**
+     * Marks a step of an operation as done
+     *
+     * @param operation the operation returned by {@link #begin(String, int)}
+     * @throws Error if the operation was cancelled
+     */
+    void step(Operation operation) throws Error {
+        if (operation.parent == null) {
+            operation.done.incrementAndGet();
+            if (operation == shown) notifyListeners(false);
+        }
+        checkCancelled(operation);
+    }
+
+    /**
+     * Ends an operation
+     *
+     * @param operation the operation returned by {@link #begin(String, int)}
+     */
+    void end(Operation operation) {
+        current.set(operation.parent);
+        if (operation.parent == null) {
+            operation.endNanos = System.nanoTime();
+            running.decrementAndGet();
+            if (operation == shown) notifyListeners(true);
+            log.fine(toString(operation));
+        }
+    }
+
+    /**
+     * @return the operation running on this thread, or null
+     */
+    Operation getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Makes this thread run within an operation, used to hand an operation over to a worker thread
+     *
+     * @param operation the operation, or null to leave it
+     */
+    void setCurrent(Operation operation) {
+        current.set(operation);
+    }
+
+    /**
+     * Records a call to Imaris, in the operation running on this thread, or in the reported one
+     *
+     * @param nBytes the number of bytes moved by the call
+     * @param nanos  the duration of the call
+     */
+    void record(long nBytes, long nanos) {
+        Operation operation = current.get();
+        if (operation == null) operation = shown;
+        if (operation == null) return;
+        operation.root.bytes.addAndGet(nBytes);
+        operation.root.calls.incrementAndGet();
+        operation.root.callNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param operation the operation returned by {@link #begin(String, int)}
+     * @throws Error if the operation, or the operation it is nested in, was cancelled
+     */
+    void checkCancelled(Operation operation) throws Error {
+        if (operation.root.cancelled) {
+            throw new Error("Transfer Cancelled", operation.root.name + " was cancelled", "");
+        }
+    }
+
+    private void notifyListeners(boolean force) {
+        long now = System.currentTimeMillis();
+        long last = lastNotification.get();
+        if (!force && now - last < notificationInterval) return;
+        if (!force && !lastNotification.compareAndSet(last, now)) return;
+        lastNotification.set(now);
+        for (Listener listener : listeners) {
+            listener.progress(this);
+        }
+    }
+
+    public String getName() {
+        Operation operation = shown;
+        return operation == null ? "" : operation.name;
+    }
+
+    public int getDone() {
+        Operation operation = shown;
+        return operation == null ? 0 : operation.done.get();
+    }
+
+    public int getTotal() {
+        Operation operation = shown;
+        return operation == null ? 0 : operation.total;
+    }
+
+    public boolean isRunning() {
+        return running.get() > 0;
+    }
+
+    public long getBytes() {
+        Operation operation = shown;
+        return operation == null ? 0 : operation.bytes.get();
+    }
+
+    public long getCalls() {
+        Operation operation = shown;
+        return operation == null ? 0 : operation.calls.get();
+    }
+
+    /**
+     * @return the mean duration of a call to Imaris, in milliseconds
+     */
+    public double getMeanLatency() {
+        Operation operation = shown;
+        return operation == null ? 0 : getMeanLatency(operation);
+    }
+
+    /**
+     * @return the time since the start of the operation, or its duration if it ended, in seconds
+     */
+    public double getElapsed() {
+        Operation operation = shown;
+        return operation == null ? 0 : getElapsed(operation);
+    }
+
+    /**
+     * @return the number of megabytes moved per second since the start of the operation
+     */
+    public double getThroughput() {
+        Operation operation = shown;
+        return operation == null ? 0 : getThroughput(operation);
+    }
+
+    private static double getMeanLatency(Operation operation) {
+        long n = operation.calls.get();
+        return n == 0 ? 0 : operation.callNanos.get() / 1e6 / n;
+    }
+
+    private static double getElapsed(Operation operation) {
+        long end = operation.endNanos == 0 ? System.nanoTime() : operation.endNanos;
+        return (end - operation.startNanos) / 1e9;
+    }
+
+    private static double getThroughput(Operation operation) {
+        double elapsed = getElapsed(operation);
+        return elapsed == 0 ? 0 : operation.bytes.get() / 1e6 / elapsed;
+    }
+
+    private static String toString(Operation operation) {
+        return String.format("%s: %d/%d, %.1f MB in %d calls (%.2f ms/call), %.1f MB/s",
+                operation.name, operation.done.get(), operation.total, operation.bytes.get() / 1e6,
+                operation.calls.get(), getMeanLatency(operation), getThroughput(operation));
+    }
+
+    @Override
+    public String toString() {
+        Operation operation = shown;
+        return operation == null ? "No transfer" : toString(operation);
+    }
+}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import ij.ImagePlus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per channel and per timepoint intensity statistics of a dataset, computed while its planes are transferred, so that
+ * auto-contrast, thresholds or normalization do not need another pass over the image in Fiji.
+ * <p>
+ * Use {@link DatasetQuery#setComputeStatistics(boolean)} to compute them while getting an ImagePlus, and
+ * {@link #of(ImagePlus)} to get them back. The display ranges of the image are then set from the actual data.
+ * {@link DatasetQuery#getStatistics()} computes them without keeping any pixel.
+ * <p>
+ * Channels and timepoints are the indices in the dataset, 0-based.
+ */
+public class TransferStatistics {
+
+    /**
+     * Name of the ImagePlus property holding the statistics computed when getting it
+     */
+    public static final String PROPERTY = "EasyXT.Statistics";
+
+    private final int bitDepth;
+    private final ImarisCalibration cal;
+    private final Map<Long, IntensityHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @param bitDepth the bit depth of the data
+     * @param cal      the calibration of the dataset, whose channel ranges are used for the bins of 32-bit data
+     */
+    TransferStatistics(int bitDepth, ImarisCalibration cal) {
+        this.bitDepth = bitDepth;
+        this.cal = cal;
+    }
+
+    /**
+     * Adds a plane transferred from Imaris
+     *
+     * @param c      the channel in the dataset
+     * @param t      the timepoint in the dataset
+     * @param pixels the pixels of the plane
+     */
+    void add(int c, int t, Object pixels) {
+        histograms.computeIfAbsent(key(c, t), k -> newHistogram(c)).add(pixels);
+    }
+
+    private IntensityHistogram newHistogram(int c) {
+        switch (bitDepth) {
+            case 8:
+                return new IntensityHistogram(256, 0, 256);
+            case 16:
+                // 16 gray levels per bin, so that many timepoints stay affordable
+                return new IntensityHistogram(4096, 0, 65536);
+            default:
+                return new IntensityHistogram(4096, cal.cMin[c], cal.cMax[c]);
+        }
+    }
+
+    /**
+     * @param c the channel in the dataset
+     * @param t the timepoint in the dataset
+     * @return the statistics of this channel and timepoint, or null if it was not transferred
+     */
+    public IntensityHistogram get(int c, int t) {
+        return histograms.get(key(c, t));
+    }
+
+    /**
+     * @param c the channel in the dataset
+     * @return the statistics of this channel over all transferred timepoints, or null if it was not transferred
+     */
+    public IntensityHistogram getChannel(int c) {
+        IntensityHistogram total = null;
+        for (Map.Entry<Long, IntensityHistogram> entry : histograms.entrySet()) {
+            if ((int) (entry.getKey() >> 32) != c) continue;
+            if (total == null) total = newHistogram(c);
+            total.add(entry.getValue());
+        }
+        return total;
+    }
+
+    /**
+     * Returns the statistics computed while getting an image
+     *
+     * @param imp an image from {@link DatasetQuery#get()}
+     * @return its statistics, or null if they were not computed
+     */
+    public static TransferStatistics of(ImagePlus imp) {
+        Object statistics = imp.getProperty(PROPERTY);
+        return statistics instanceof TransferStatistics ? (TransferStatistics) statistics : null;
+    }
+
+    /**
+     * Sets the display range of each channel of an image from the actual minimum and maximum of the data
+     *
+     * @param imp      the image, whose channels are the given dataset channels
+     * @param channels the dataset channel of each channel of the image
+     */
+    void applyDisplayRanges(ImagePlus imp, int[] channels) {
+        for (int c = 0; c < channels.length; c++) {
+            IntensityHistogram histogram = getChannel(channels[c]);
+            if (histogram == null || histogram.getCount() == 0) continue;
+            imp.setC(c + 1);
+            imp.setDisplayRange(histogram.getMin(), histogram.getMax());
+        }
+        imp.setC(1);
+    }
+
+    private static long key(int c, int t) {
+        return ((long) c << 32) | t;
+    }
+}
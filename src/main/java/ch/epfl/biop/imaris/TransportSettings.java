@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import Ice.InitializationData;
+import Ice.Properties;
+import Ice.Util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings of the ICE connection to Imaris, to use with {@link EasyXT.Utils#connectToImaris(TransportSettings)}.
+ * <p>
+ * By default EasyXT connects through ImarisLib, whose ICE settings cannot be changed. With transport settings, EasyXT
+ * creates its own ICE communicator instead, which allows to raise the maximum message size, to size the client thread
+ * pool for concurrent transfers (see {@link DatasetTransfer#setThreads(int)}) or to enable protocol compression.
+ * <p>
+ * The maximum message size is also used to split requests which would be larger, see
+ * {@link DatasetTransfer#setMaxRequestBytes(long)}. Without settings, requests are not split: the ImarisLib connection
+ * already accepts whole planes of several megabytes in a single call.
+ * <p>
+ * Example:
+ * <pre>
+ * EasyXT.Utils.connectToImaris(new TransportSettings()
+ *         .messageSizeMax(512 * 1024)
+ *         .clientThreads(4, 8));
+ * </pre>
+ */
+public class TransportSettings {
+
+    /**
+     * Where the Imaris server listens by default
+     */
+    public static final String DEFAULT_ENDPOINT = "ImarisServer:default -p 4029";
+
+    // Room left in each message for the ICE headers and the other arguments of a request
+    private static final long MESSAGE_OVERHEAD = 64 * 1024;
+
+    private String endpoint = DEFAULT_ENDPOINT;
+    private int messageSizeMax = 256 * 1024;
+    private boolean compress = false;
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+    /**
+     * @param endpoint the ICE proxy of the Imaris server, {@link #DEFAULT_ENDPOINT} by default
+     * @return this, for chaining
+     */
+    public TransportSettings endpoint(String endpoint) {
+        this.endpoint = endpoint;
+        return this;
+    }
+
+    /**
+     * @param kiloBytes the ICE MessageSizeMax, in kilobytes. 256 MB by default
+     * @return this, for chaining
+     */
+    public TransportSettings messageSizeMax(int kiloBytes) {
+        this.messageSizeMax = kiloBytes;
+        return this;
+    }
+
+    /**
+     * Sets the size of the ICE client thread pool. It should be at least the number of concurrent transfers
+     *
+     * @param size    the initial number of threads
+     * @param sizeMax the maximum number of threads
+     * @return this, for chaining
+     */
+    public TransportSettings clientThreads(int size, int sizeMax) {
+        properties.put("Ice.ThreadPool.Client.Size", String.valueOf(size));
+        properties.put("Ice.ThreadPool.Client.SizeMax", String.valueOf(sizeMax));
+        return this;
+    }
+
+    /**
+     * Enables ICE protocol compression. This only helps on slow networks, when Imaris runs on another machine
+     *
+     * @param compress true to compress requests and replies
+     * @return this, for chaining
+     */
+    public TransportSettings compress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * Sets any other ICE property, for example "Ice.Override.Timeout"
+     *
+     * @param key   the name of the ICE property
+     * @param value its value
+     * @return this, for chaining
+     */
+    public TransportSettings property(String key, String value) {
+        properties.put(key, value);
+        return this;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public int getMessageSizeMax() {
+        return messageSizeMax;
+    }
+
+    public boolean isCompressed() {
+        return compress;
+    }
+
+    /**
+     * @return the largest amount of pixel data that fits in a single message
+     */
+    public long getMaxRequestBytes() {
+        return Math.max(1, messageSizeMax * 1024L - MESSAGE_OVERHEAD);
+    }
+
+    /**
+     * @return the initialization data for a new ICE communicator with these settings
+     */
+    InitializationData getInitializationData() {
+        Properties iceProperties = Util.createProperties();
+        iceProperties.setProperty("Ice.MessageSizeMax", String.valueOf(messageSizeMax));
+        properties.forEach(iceProperties::setProperty);
+
+        InitializationData data = new InitializationData();
+        data.properties = iceProperties;
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "TransportSettings[" + endpoint + ", MessageSizeMax=" + messageSizeMax + "KB, compress=" + compress + ", " + properties + "]";
+    }
+}
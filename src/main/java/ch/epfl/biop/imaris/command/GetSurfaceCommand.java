@@ -26,6 +26,7 @@ import Imaris.ISurfacesPrx;
 import ch.epfl.biop.imaris.EasyXT;
 import ij.ImagePlus;
 import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -33,6 +34,9 @@ import org.scijava.plugin.Plugin;
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP>EasyXT>Surface>Get Surface from Imaris")
 public class GetSurfaceCommand implements Command {
 
+    @Parameter
+    StatusService status;
+
     @Parameter
     String surfaceName;
 
@@ -42,7 +46,7 @@ public class GetSurfaceCommand implements Command {
     @Override
     public void run() {
         // Gets an existing surface
-        try {
+        try (TransferStatus ignored = new TransferStatus(status)) {
             ISurfacesPrx surfprx = EasyXT.Surfaces.find(surfaceName);
             // Display surfaces
             surfaceImp = EasyXT.Surfaces.getMaskImage(surfprx);
@@ -25,6 +25,7 @@ import Imaris.Error;
 import Imaris.ISurfacesPrx;
 import ch.epfl.biop.imaris.EasyXT;
 import ij.ImagePlus;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -32,6 +33,9 @@ import org.scijava.plugin.Plugin;
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP>EasyXT>Surface>Send Labels Image as Surface(s) to Imaris")
 public class LabelsImageToSurfaceCommand implements Command {
 
+    @Parameter
+    StatusService status;
+
     @Parameter
     ImagePlus imp;
 
@@ -41,7 +45,7 @@ public class LabelsImageToSurfaceCommand implements Command {
     @Override
     public void run() {
         // Using the Image Name as a key to access the surface
-        try {
+        try (TransferStatus ignored = new TransferStatus(status)) {
             ISurfacesPrx surface = EasyXT.Surfaces.createFromLabels(imp);
             EasyXT.Scene.addItem(surface);
 
@@ -25,6 +25,7 @@ import Imaris.Error;
 import Imaris.ISurfacesPrx;
 import ch.epfl.biop.imaris.EasyXT;
 import ij.ImagePlus;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -32,13 +33,16 @@ import org.scijava.plugin.Plugin;
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP>EasyXT>Surface>Put Surface to Imaris")
 public class PutSurfaceCommand implements Command {
 
+    @Parameter
+    StatusService status;
+
     @Parameter
     ImagePlus surface_imp;
 
     @Override
     public void run() {
         // Using the Image Name as a key to access the surface
-        try {
+        try (TransferStatus ignored = new TransferStatus(status)) {
             ISurfacesPrx surface = EasyXT.Surfaces.create(surface_imp);
             EasyXT.Scene.addItem(surface);
         } catch (Error error) {
@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris.command;
+
+import ch.epfl.biop.imaris.TransferMonitor;
+import org.scijava.app.StatusService;
+
+/**
+ * Shows the progress and throughput of Imaris transfers in the status bar while a command runs.
+ * Use in a try-with-resources block so that the listener is always removed
+ */
+class TransferStatus implements TransferMonitor.Listener, AutoCloseable {
+
+    private final StatusService status;
+
+    TransferStatus(StatusService status) {
+        this.status = status;
+        TransferMonitor.get().addListener(this);
+    }
+
+    @Override
+    public void progress(TransferMonitor monitor) {
+        if (monitor.isRunning()) {
+            status.showProgress(monitor.getDone(), monitor.getTotal());
+            status.showStatus(monitor.toString());
+        } else {
+            status.clearStatus();
+            status.showStatus(monitor.toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        TransferMonitor.get().removeListener(this);
+    }
+}
@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.imaris.demo;
+
+import Imaris.Error;
+import Imaris.IDataSetPrx;
+import ch.epfl.biop.imaris.EasyXT;
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * EasyXT Demo
+ * <p>
+ * Show how to get only the part of a dataset we need:
+ * - a single channel of a few timepoints
+ * - a downsampled preview of the whole dataset
+ * - a virtual stack, which only reads planes from Imaris when they are displayed
+ */
+
+public class GetDatasetSubsetDemo {
+
+    public static void main(String... args) throws Exception {
+        try {
+            // Fresh Start with the BIOP sample dataset
+            FreshStartWithIJAndBIOPImsSample.main();
+
+            IDataSetPrx dataset = EasyXT.Dataset.getCurrent();
+
+            long t0 = System.currentTimeMillis();
+            // Second channel, first 5 timepoints, central region
+            ImagePlus subset = EasyXT.Dataset.query(dataset)
+                    .selectChannel(1)
+                    .selectTimepoints(0, 4)
+                    .selectRegion(dataset.GetSizeX() / 4, dataset.GetSizeY() / 4, dataset.GetSizeX() / 2, dataset.GetSizeY() / 2)
+                    .get();
+            subset.show();
+            IJ.log("Subset time: " + (System.currentTimeMillis() - t0) + " ms");
+
+            t0 = System.currentTimeMillis();
+            // Half the size in X, Y and Z
+            ImagePlus preview = EasyXT.Dataset.getImagePlus(dataset, 1);
+            preview.setTitle("Preview");
+            preview.show();
+            IJ.log("Preview time: " + (System.currentTimeMillis() - t0) + " ms");
+
+            t0 = System.currentTimeMillis();
+            ImagePlus virtual = EasyXT.Dataset.getVirtualImagePlus(dataset);
+            virtual.setTitle("Virtual");
+            virtual.show();
+            IJ.log("Virtual stack time: " + (System.currentTimeMillis() - t0) + " ms");
+
+        } catch (Error error) {
+            error.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the pixel conversions, which do not need Imaris
+ */
+public class PixelConverterTest {
+
+    @Test
+    public void clampKeepsValuesWhenWidening() {
+        short[] out = (short[]) PixelConverter.clamp().convert(new byte[]{0, 1, (byte) 200, (byte) 255}, 16);
+        assertArrayEquals(new short[]{0, 1, 200, 255}, out);
+    }
+
+    @Test
+    public void clampClipsWhenNarrowing() {
+        byte[] out = (byte[]) PixelConverter.clamp().convert(new short[]{0, 100, 255, 300, (short) 65535}, 8);
+        assertArrayEquals(new byte[]{0, 100, (byte) 255, (byte) 255, (byte) 255}, out);
+    }
+
+    @Test
+    public void clampRoundsFloats() {
+        byte[] out = (byte[]) PixelConverter.clamp().convert(new float[]{-5, 12.4f, 12.6f, 1000}, 8);
+        assertArrayEquals(new byte[]{0, 12, 13, (byte) 255}, out);
+    }
+
+    @Test
+    public void clampReadsUnsignedValues() {
+        float[] out = (float[]) PixelConverter.clamp().convert(new short[]{(short) 65535, (short) 40000}, 32);
+        assertArrayEquals(new float[]{65535, 40000}, out, 0);
+    }
+
+    @Test
+    public void clampReturnsTheSourceForTheSameBitDepth() {
+        short[] src = {1, 2, 3};
+        assertSame(src, PixelConverter.clamp().convert(src, 16));
+    }
+
+    @Test
+    public void scaleMapsTheRangeAndClipsOutside() {
+        byte[] out = (byte[]) PixelConverter.scale(100, 610).convert(new short[]{50, 100, 300, 610, 700}, 8);
+        assertArrayEquals(new byte[]{0, 0, 100, (byte) 255, (byte) 255}, out);
+    }
+
+    @Test
+    public void scaleAppliesToTheSameBitDepth() {
+        byte[] out = (byte[]) PixelConverter.scale(0, 127.5).convert(new byte[]{0, 50, 100, (byte) 200}, 8);
+        assertArrayEquals(new byte[]{0, 100, (byte) 200, (byte) 255}, out);
+    }
+
+    @Test
+    public void scaleFloatsToSixteenBit() {
+        short[] out = (short[]) PixelConverter.scale(0, 1).convert(new float[]{-1, 0, 0.5f, 1, 2}, 16);
+        assertArrayEquals(new short[]{0, 0, (short) 32768, (short) 65535, (short) 65535}, out);
+    }
+
+    @Test
+    public void scaleKeepsValuesForFloatTargets() {
+        float[] out = (float[]) PixelConverter.scale(100, 200).convert(new short[]{50, 150}, 32);
+        assertArrayEquals(new float[]{50, 150}, out, 0);
+    }
+
+    @Test
+    public void fullRangeWidens() {
+        short[] out = (short[]) PixelConverter.fullRange().convert(new byte[]{0, 1, (byte) 255}, 16);
+        assertArrayEquals(new short[]{0, 257, (short) 65535}, out);
+    }
+
+    @Test
+    public void fullRangeNarrows() {
+        byte[] out = (byte[]) PixelConverter.fullRange().convert(new short[]{0, 257, (short) 65535}, 8);
+        assertArrayEquals(new byte[]{0, 1, (byte) 255}, out);
+    }
+
+    @Test
+    public void fullRangeTakesFloatsAsZeroToOne() {
+        byte[] out = (byte[]) PixelConverter.fullRange().convert(new float[]{0, 0.5f, 1, 2}, 8);
+        assertArrayEquals(new byte[]{0, (byte) 128, (byte) 255, (byte) 255}, out);
+    }
+
+    @Test
+    public void convertsBetweenOffsets() {
+        short[] dst = new short[5];
+        PixelConverter.clamp().convert(new byte[]{9, 8, 7, 6}, 1, dst, 2, 2);
+        assertArrayEquals(new short[]{0, 0, 8, 7, 0}, dst);
+    }
+
+    @Test
+    public void blockBuffersHaveTheExactSize() {
+        assertEquals(10, ((byte[]) PixelConverter.getBlockBuffer(8, 10)).length);
+        assertEquals(3, ((float[]) PixelConverter.getBlockBuffer(32, 3)).length);
+    }
+
+    @Test
+    public void blockBuffersAreReusedForAlternatingSizes() {
+        Object full = PixelConverter.getBlockBuffer(16, 100);
+        Object last = PixelConverter.getBlockBuffer(16, 30);
+        assertSame(full, PixelConverter.getBlockBuffer(16, 100));
+        assertSame(last, PixelConverter.getBlockBuffer(16, 30));
+    }
+}
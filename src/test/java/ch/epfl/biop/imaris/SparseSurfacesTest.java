@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * API and commands to facilitate communication between Imaris and FIJI
+ * %%
+ * Copyright (C) 2020 - 2024 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.imaris;
+
+import ch.epfl.biop.imaris.SparseSurfaces.SparseSurface;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the run-length encoding and the overlaps of sparse surfaces on synthetic runs, which do not need Imaris
+ */
+public class SparseSurfacesTest {
+
+    private static final int[] BOUNDS = {0, 0, 0, 10, 10, 10};
+
+    private static SparseSurface surface(int t, int... runs) {
+        return new SparseSurface(0, t, BOUNDS, runs);
+    }
+
+    @Test
+    public void encodesSeparateRuns() {
+        byte[] plane = {
+                1, 1, 0, 0, 1,
+                0, 0, 0, 0, 0,
+                0, 1, 1, 1, 0};
+        int[] runs = SparseSurfaces.encodePlane(plane, 2, 3, 4, 5, 3, 100, 100);
+        assertArrayEquals(new int[]{4, 3, 2, 2, 4, 3, 6, 1, 4, 5, 3, 3}, runs);
+    }
+
+    @Test
+    public void encodesAnyPixelType() {
+        int[] expected = {0, 0, 1, 2};
+        assertArrayEquals(expected, SparseSurfaces.encodePlane(new short[]{0, 255, 255, 0}, 0, 0, 0, 4, 1, 4, 1));
+        assertArrayEquals(expected, SparseSurfaces.encodePlane(new float[]{0, 1, 1, 0}, 0, 0, 0, 4, 1, 4, 1));
+    }
+
+    @Test
+    public void clipsRunsAtTheDatasetBorder() {
+        // A 4 x 3 plane, one pixel left of and one row above the dataset, and overflowing its 2 x 2 size
+        byte[] plane = {
+                1, 1, 1, 1,
+                1, 1, 1, 1,
+                0, 1, 1, 0};
+        int[] runs = SparseSurfaces.encodePlane(plane, -1, -1, 0, 4, 3, 2, 2);
+        assertArrayEquals(new int[]{0, 0, 0, 2, 0, 1, 0, 2}, runs);
+    }
+
+    @Test
+    public void encodesNothingOutsideTheDataset() {
+        byte[] plane = {1, 1, 1, 1};
+        assertEquals(0, SparseSurfaces.encodePlane(plane, 5, 0, 0, 2, 2, 5, 5).length);
+        assertEquals(0, SparseSurfaces.encodePlane(plane, -2, 0, 0, 2, 2, 5, 5).length);
+        assertEquals(0, SparseSurfaces.encodePlane(plane, 0, 5, 0, 2, 2, 5, 5).length);
+    }
+
+    @Test
+    public void countsVoxels() {
+        assertEquals(7, surface(0, 0, 0, 0, 3, 1, 2, 5, 4).getVoxelCount());
+    }
+
+    @Test
+    public void disjointRunsDoNotOverlap() {
+        SparseSurface a = surface(0, 0, 0, 0, 3, 0, 1, 0, 3);
+        SparseSurface b = surface(0, 0, 0, 3, 3, 0, 2, 0, 3, 1, 1, 0, 3);
+        assertEquals(0, a.getOverlap(b));
+        assertEquals(0, b.getOverlap(a));
+    }
+
+    @Test
+    public void nestedRunsOverlapByTheInnerRun() {
+        SparseSurface outer = surface(0, 2, 4, 0, 10);
+        SparseSurface inner = surface(0, 2, 4, 3, 4);
+        assertEquals(4, outer.getOverlap(inner));
+        assertEquals(4, inner.getOverlap(outer));
+    }
+
+    @Test
+    public void partialOverlapsAreSummedOverRows() {
+        // Row (0, 0): 2-6 and 4-8 share 3 voxels, row (0, 1): 0-1 and 1-9 share 1, row (1, 0) is only in a
+        SparseSurface a = surface(0, 0, 0, 2, 5, 0, 1, 0, 2, 1, 0, 0, 5);
+        SparseSurface b = surface(0, 0, 0, 4, 5, 0, 1, 1, 9);
+        assertEquals(4, a.getOverlap(b));
+        assertEquals(4, b.getOverlap(a));
+    }
+
+    @Test
+    public void severalRunsInARowOverlapOneLongRun() {
+        SparseSurface a = surface(0, 0, 0, 0, 2, 0, 0, 4, 2, 0, 0, 8, 2);
+        SparseSurface b = surface(0, 0, 0, 1, 8);
+        assertEquals(4, a.getOverlap(b));
+        assertEquals(4, b.getOverlap(a));
+    }
+
+    @Test
+    public void surfacesAtOtherTimepointsDoNotOverlap() {
+        assertEquals(0, surface(0, 0, 0, 0, 5).getOverlap(surface(1, 0, 0, 0, 5)));
+    }
+
+    @Test
+    public void clippedRunsOverlapWithinTheDataset() {
+        // Two 3 x 1 planes hanging over the left border of the dataset, shifted by one pixel
+        SparseSurface a = surface(0, SparseSurfaces.encodePlane(new byte[]{1, 1, 1}, -2, 0, 0, 3, 1, 10, 10));
+        SparseSurface b = surface(0, SparseSurfaces.encodePlane(new byte[]{1, 1, 1}, -1, 0, 0, 3, 1, 10, 10));
+        assertEquals(1, a.getVoxelCount());
+        assertEquals(2, b.getVoxelCount());
+        assertEquals(1, a.getOverlap(b));
+    }
+}
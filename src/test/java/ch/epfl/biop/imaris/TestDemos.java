@@ -24,6 +24,7 @@ import ch.epfl.biop.imaris.demo.AddChildObjects;
 import ch.epfl.biop.imaris.demo.AddStatsDemo;
 import ch.epfl.biop.imaris.demo.AllGettersDemo;
 import ch.epfl.biop.imaris.demo.FreshStartWithIJAndBIOPImsSample;
+import ch.epfl.biop.imaris.demo.GetDatasetSubsetDemo;
 import ch.epfl.biop.imaris.demo.GetStatisticsDemo;
 import ch.epfl.biop.imaris.demo.GetSurfaceLabel2DDemo;
 import ch.epfl.biop.imaris.demo.MakeAndGetSpotsDemo;
@@ -87,6 +88,13 @@ public class TestDemos {
         }
     }
 
+    @Test
+    public void GetDatasetSubsetDemo() throws Exception {
+        if (envOkForTest()) {
+            GetDatasetSubsetDemo.main(mode);
+        }
+    }
+
     @Test
     public void GetStatisticsDemo() throws Exception {
         if (envOkForTest()) {